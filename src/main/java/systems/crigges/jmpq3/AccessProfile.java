@@ -0,0 +1,62 @@
+package systems.crigges.jmpq3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Scanner;
+
+import static systems.crigges.jmpq3.HashTable.calculateFileKey;
+
+/**
+ * The files read from an archive, in the order they were first read.
+ * <p>
+ * A profile is recorded with {@link JMpqEditor#recordAccess(AccessProfile)},
+ * for example while a game or tool loads the archive, and can be stored in
+ * the same format as a listfile. A rebuild with
+ * {@link JMpqEditor#setLayoutProfile(AccessProfile)} places the profiled
+ * files at the front of the archive in profile order, so they are read
+ * sequentially.
+ */
+public class AccessProfile {
+    private final LinkedHashMap<Long, String> files = new LinkedHashMap<>();
+
+    public AccessProfile(byte[] file) {
+        String list = new String(file, StandardCharsets.UTF_8);
+        Scanner sc = new Scanner(list);
+        while (sc.hasNextLine()) {
+            record(sc.nextLine());
+        }
+        sc.close();
+    }
+
+    public AccessProfile() {
+    }
+
+    /**
+     * Records an access to a file. Only the first access of a file is kept.
+     *
+     * @param name the file name
+     */
+    public synchronized void record(String name) {
+        if (name != null && name.length() > 0) {
+            files.putIfAbsent(calculateFileKey(name), name);
+        }
+    }
+
+    /**
+     * @return the recorded files in access order
+     */
+    public synchronized List<String> getFiles() {
+        return new ArrayList<>(files.values());
+    }
+
+    public synchronized byte[] asByteArray() {
+        StringBuilder temp = new StringBuilder();
+        for (String entry : this.files.values()) {
+            temp.append(entry);
+            temp.append("\r\n");
+        }
+        return temp.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,211 @@
+package systems.crigges.jmpq3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Buffered positional writer for the channel an archive is written to.
+ * <p>
+ * Archives are written mostly front to back, with small writes going back
+ * into recently written data, such as the sector offset table of a file or
+ * the header. Writes are collected in a single buffer covering a contiguous
+ * range of the output, including writes back into that range and writes
+ * skipping ahead, such as the sectors after the space of a sector offset
+ * table. Skipped bytes are zero unless they are written later. The buffer is
+ * written out when a write does not fit into it, so the channel sees few
+ * large writes no matter how many files and sectors there are.
+ * <p>
+ * Data which is copied unchanged from another channel, such as the blocks of
+ * existing files, does not have to pass through the heap. Large ranges are
+ * transferred between file channels by the operating system.
+ */
+class ArchiveWriter {
+    /**
+     * Default buffer size.
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private final SeekableByteChannel channel;
+    private final long channelStart;
+    /**
+     * The buffered data, its position is the high-water mark of the writes
+     * since the last flush.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * File position of the first buffered byte.
+     */
+    private long bufferStart;
+    /**
+     * File position after the data written to the channel so far.
+     */
+    private long channelEnd;
+
+    /**
+     * @param channel      the channel to write to
+     * @param channelStart the file position at the start of the channel
+     */
+    ArchiveWriter(SeekableByteChannel channel, long channelStart) {
+        this(channel, channelStart, BUFFER_SIZE);
+    }
+
+    /**
+     * @param channel      the channel to write to
+     * @param channelStart the file position at the start of the channel
+     * @param bufferSize   the buffer size
+     */
+    ArchiveWriter(SeekableByteChannel channel, long channelStart, int bufferSize) {
+        this.channel = channel;
+        this.channelStart = channelStart;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Writes the remaining data of a buffer.
+     *
+     * @param data the data
+     * @param pos  the file position to write to
+     * @throws IOException if writing fails
+     */
+    void write(ByteBuffer data, long pos) throws IOException {
+        final int length = data.remaining();
+        long offset = pos - bufferStart;
+        if (offset < 0 && buffer.position() > 0 && buffer.position() - offset <= buffer.capacity()
+            && (pos + length >= bufferStart || pos + length >= channelEnd)) {
+            // a write just in front of the buffer, such as the sector offset table of the file it holds
+            System.arraycopy(buffer.array(), 0, buffer.array(), (int) -offset, buffer.position());
+            buffer.position(buffer.position() - (int) offset);
+            Arrays.fill(buffer.array(), 0, (int) -offset, (byte) 0);
+            bufferStart = pos;
+            offset = 0;
+        }
+        // skipping ahead is buffered unless the skipped bytes were written out before
+        final boolean overwritesGap = offset > buffer.position() && bufferStart + buffer.position() < channelEnd;
+        if (buffer.position() == 0 || offset < 0 || offset + length > buffer.capacity() || overwritesGap) {
+            flush();
+            if (length >= buffer.capacity()) {
+                channel.position(pos - channelStart);
+                writeFully(data);
+                channelEnd = Math.max(channelEnd, pos + length);
+                return;
+            }
+            bufferStart = pos;
+        }
+        final int start = (int) (pos - bufferStart);
+        if (start > buffer.position()) {
+            // the buffer still holds data of earlier flushes
+            Arrays.fill(buffer.array(), buffer.position(), start, (byte) 0);
+        }
+        final ByteBuffer target = buffer.duplicate();
+        target.position(start);
+        target.put(data);
+        buffer.position(Math.max(buffer.position(), start + length));
+    }
+
+    /**
+     * Copies a range of another channel.
+     *
+     * @param source    the channel to copy from
+     * @param sourcePos the position of the range in the source channel
+     * @param length    the length of the range
+     * @param pos       the file position to write to
+     * @throws IOException if reading or writing fails
+     */
+    void transfer(SeekableByteChannel source, long sourcePos, long length, long pos) throws IOException {
+        if (length < buffer.capacity() / 4) {
+            // small ranges are collected like any other write
+            final ByteBuffer data = ByteBuffer.allocate((int) length);
+            source.position(sourcePos);
+            while (data.hasRemaining()) {
+                if (source.read(data) < 1) {
+                    throw new EOFException("Cannot read enough bytes.");
+                }
+            }
+            data.flip();
+            write(data, pos);
+            return;
+        }
+        flush();
+        channel.position(pos - channelStart);
+        transfer(source, sourcePos, length, channel);
+        channelEnd = Math.max(channelEnd, pos + length);
+    }
+
+    /**
+     * Copies a range of a channel to the current position of another channel.
+     * The range is transferred by the operating system if the source is a
+     * file channel.
+     *
+     * @param source    the channel to copy from
+     * @param sourcePos the position of the range in the source channel
+     * @param length    the length of the range
+     * @param target    the channel to copy to
+     * @throws IOException if reading or writing fails
+     */
+    static void transfer(SeekableByteChannel source, long sourcePos, long length, WritableByteChannel target) throws IOException {
+        if (source instanceof FileChannel) {
+            final FileChannel fileSource = (FileChannel) source;
+            while (length > 0) {
+                final long transferred = fileSource.transferTo(sourcePos, length, target);
+                if (transferred < 1) {
+                    throw new EOFException("Cannot read enough bytes.");
+                }
+                sourcePos += transferred;
+                length -= transferred;
+            }
+            return;
+        }
+        final ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(length, BUFFER_SIZE));
+        source.position(sourcePos);
+        while (length > 0) {
+            chunk.clear().limit((int) Math.min(length, chunk.capacity()));
+            if (source.read(chunk) < 1) {
+                throw new EOFException("Cannot read enough bytes.");
+            }
+            chunk.flip();
+            length -= chunk.remaining();
+            while (chunk.hasRemaining()) {
+                if (target.write(chunk) < 1) {
+                    throw new EOFException("Cannot write enough bytes.");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param filePos the file position of the file start
+     * @return a sink writing file data at the specified position
+     */
+    MpqFile.FileSink sinkAt(long filePos) {
+        return (data, offset) -> write(data, filePos + offset);
+    }
+
+    /**
+     * Writes out the buffered data.
+     *
+     * @throws IOException if writing fails
+     */
+    void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        channel.position(bufferStart - channelStart);
+        channelEnd = Math.max(channelEnd, bufferStart + buffer.remaining());
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (channel.write(data) < 1) {
+                throw new EOFException("Cannot write enough bytes.");
+            }
+        }
+    }
+}
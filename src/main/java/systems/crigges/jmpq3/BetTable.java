@@ -0,0 +1,280 @@
+package systems.crigges.jmpq3;
+
+import systems.crigges.jmpq3.BlockTable.Block;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MPQ BET (block entry table). Used by format version 2 and newer archives in
+ * place of the block table.
+ * <p>
+ * Entries are bit packed using only as many bits as the largest file position
+ * and size of the archive require. Flags are stored once in a flag array and
+ * referenced by index. The table also holds the lower part of the HET name
+ * hash of each file.
+ */
+public class BetTable {
+    /**
+     * BET table signature, 'BET\x1A'.
+     */
+    public static final int SIGNATURE = 0x1A544542;
+
+    /**
+     * Size of the table header, excluding the extended table header.
+     */
+    private static final int HEADER_SIZE = 76;
+
+    private final int entryCount;
+    private final int tableEntrySize;
+    private final int bitIndexFilePos;
+    private final int bitIndexFileSize;
+    private final int bitIndexCmpSize;
+    private final int bitIndexFlagIndex;
+    private final int bitCountFilePos;
+    private final int bitCountFileSize;
+    private final int bitCountCmpSize;
+    private final int bitCountFlagIndex;
+    private final int bitTotalNameHash2;
+    private final int bitCountNameHash2;
+    private final int[] flags;
+
+    /**
+     * Bit packed file table.
+     */
+    private final byte[] fileTable;
+
+    /**
+     * Bit packed lower parts of the name hashes.
+     */
+    private final byte[] nameHashes;
+
+    /**
+     * Reads a BET table.
+     *
+     * @param buf decrypted and decompressed table data following the extended
+     *            table header.
+     * @throws JMpqException if the table is damaged.
+     */
+    public BetTable(ByteBuffer buf) throws JMpqException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.getInt(); // table size
+        entryCount = buf.getInt();
+        buf.getInt(); // unknown, always 0x10
+        tableEntrySize = buf.getInt();
+        bitIndexFilePos = buf.getInt();
+        bitIndexFileSize = buf.getInt();
+        bitIndexCmpSize = buf.getInt();
+        bitIndexFlagIndex = buf.getInt();
+        buf.getInt(); // bit index unknown
+        bitCountFilePos = buf.getInt();
+        bitCountFileSize = buf.getInt();
+        bitCountCmpSize = buf.getInt();
+        bitCountFlagIndex = buf.getInt();
+        buf.getInt(); // bit count unknown
+        bitTotalNameHash2 = buf.getInt();
+        buf.getInt(); // bit extra name hash 2
+        bitCountNameHash2 = buf.getInt();
+        final int nameHashArraySize = buf.getInt();
+        final int flagCount = buf.getInt();
+
+        final long fileTableSize = ((long) tableEntrySize * entryCount + 7) / 8;
+        // every entry and name hash read later stays within the arrays read below
+        if (entryCount < 0 || flagCount < 0 || tableEntrySize < 0 || nameHashArraySize < 0
+            || !isField(bitIndexFilePos, bitCountFilePos, 64) || !isField(bitIndexFileSize, bitCountFileSize, 32)
+            || !isField(bitIndexCmpSize, bitCountCmpSize, 32) || !isField(bitIndexFlagIndex, bitCountFlagIndex, 32)
+            || bitCountNameHash2 < 0 || bitCountNameHash2 > 56 || bitTotalNameHash2 < bitCountNameHash2
+            || (long) nameHashArraySize * 8 < (long) bitTotalNameHash2 * entryCount
+            || buf.remaining() < flagCount * 4L + fileTableSize + nameHashArraySize) {
+            throw new JMpqException("Bad BET table.");
+        }
+
+        flags = new int[flagCount];
+        for (int i = 0; i < flagCount; i++) {
+            flags[i] = buf.getInt();
+        }
+        fileTable = new byte[(int) fileTableSize];
+        buf.get(fileTable);
+        nameHashes = new byte[nameHashArraySize];
+        buf.get(nameHashes);
+    }
+
+    /**
+     * Checks that a bit field lies within a table entry.
+     *
+     * @param bitIndex    the position of the field in the entry.
+     * @param bitCount    the size of the field.
+     * @param maxBitCount the largest size the field can be decoded with.
+     * @return true if the field is valid.
+     */
+    private boolean isField(int bitIndex, int bitCount, int maxBitCount) {
+        return bitIndex >= 0 && bitCount >= 0 && bitCount <= maxBitCount && (long) bitIndex + bitCount <= tableEntrySize;
+    }
+
+    /**
+     * Constructs a BET table holding the specified blocks.
+     *
+     * @param blocks    the blocks in table order.
+     * @param fileNames the file path names of the blocks.
+     * @param hetTable  the HET table that provides the name hashes.
+     */
+    public BetTable(List<Block> blocks, List<String> fileNames, HetTable hetTable) {
+        entryCount = blocks.size();
+
+        long maxFilePos = 0;
+        long maxFileSize = 0;
+        long maxCmpSize = 0;
+        ArrayList<Integer> flagList = new ArrayList<>();
+        for (Block b : blocks) {
+            maxFilePos = Math.max(maxFilePos, b.getFilePos());
+            maxFileSize = Math.max(maxFileSize, Integer.toUnsignedLong(b.getNormalSize()));
+            maxCmpSize = Math.max(maxCmpSize, Integer.toUnsignedLong(b.getCompressedSize()));
+            if (!flagList.contains(b.getFlags())) {
+                flagList.add(b.getFlags());
+            }
+        }
+        flags = new int[flagList.size()];
+        for (int i = 0; i < flags.length; i++) {
+            flags[i] = flagList.get(i);
+        }
+
+        bitIndexFilePos = 0;
+        bitCountFilePos = BitArray.getNecessaryBitCount(maxFilePos);
+        bitIndexFileSize = bitIndexFilePos + bitCountFilePos;
+        bitCountFileSize = BitArray.getNecessaryBitCount(maxFileSize);
+        bitIndexCmpSize = bitIndexFileSize + bitCountFileSize;
+        bitCountCmpSize = BitArray.getNecessaryBitCount(maxCmpSize);
+        bitIndexFlagIndex = bitIndexCmpSize + bitCountCmpSize;
+        bitCountFlagIndex = BitArray.getNecessaryBitCount(flags.length);
+        tableEntrySize = bitIndexFlagIndex + bitCountFlagIndex;
+        bitTotalNameHash2 = hetTable.getNameHashBitSize() - 8;
+        bitCountNameHash2 = bitTotalNameHash2;
+
+        fileTable = new byte[(int) (((long) tableEntrySize * entryCount + 7) / 8)];
+        nameHashes = new byte[(int) (((long) bitTotalNameHash2 * entryCount + 7) / 8)];
+        final long nameHash2Mask = getNameHash2Mask();
+        for (int i = 0; i < entryCount; i++) {
+            final Block b = blocks.get(i);
+            final long bitPos = (long) tableEntrySize * i;
+            BitArray.setBits(fileTable, bitPos + bitIndexFilePos, bitCountFilePos, b.getFilePos());
+            BitArray.setBits(fileTable, bitPos + bitIndexFileSize, bitCountFileSize, b.getNormalSize());
+            BitArray.setBits(fileTable, bitPos + bitIndexCmpSize, bitCountCmpSize, b.getCompressedSize());
+            BitArray.setBits(fileTable, bitPos + bitIndexFlagIndex, bitCountFlagIndex, flagList.indexOf(b.getFlags()));
+            BitArray.setBits(nameHashes, (long) bitTotalNameHash2 * i, bitCountNameHash2,
+                hetTable.getNameHash(fileNames.get(i)) & nameHash2Mask);
+        }
+    }
+
+    /**
+     * @return the size of the table including the extended table header.
+     */
+    public int getTableSize() {
+        return 12 + HEADER_SIZE + flags.length * 4 + fileTable.length + nameHashes.length;
+    }
+
+    /**
+     * Writes the unencrypted table including the extended table header.
+     *
+     * @param dest destination buffer.
+     */
+    public void writeToBuffer(ByteBuffer dest) {
+        dest.order(ByteOrder.LITTLE_ENDIAN);
+        final int dataSize = getTableSize() - 12;
+        dest.putInt(SIGNATURE);
+        dest.putInt(1);
+        dest.putInt(dataSize);
+
+        dest.putInt(dataSize);
+        dest.putInt(entryCount);
+        dest.putInt(0x10);
+        dest.putInt(tableEntrySize);
+        dest.putInt(bitIndexFilePos);
+        dest.putInt(bitIndexFileSize);
+        dest.putInt(bitIndexCmpSize);
+        dest.putInt(bitIndexFlagIndex);
+        dest.putInt(tableEntrySize); // bit index unknown
+        dest.putInt(bitCountFilePos);
+        dest.putInt(bitCountFileSize);
+        dest.putInt(bitCountCmpSize);
+        dest.putInt(bitCountFlagIndex);
+        dest.putInt(0); // bit count unknown
+        dest.putInt(bitTotalNameHash2);
+        dest.putInt(0); // bit extra name hash 2
+        dest.putInt(bitCountNameHash2);
+        dest.putInt(nameHashes.length);
+        dest.putInt(flags.length);
+        for (int flag : flags) {
+            dest.putInt(flag);
+        }
+        dest.put(fileTable);
+        dest.put(nameHashes);
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Decodes the entry at the specified index.
+     *
+     * @param pos entry index.
+     * @return the entry as block.
+     * @throws JMpqException if the index is out of range.
+     */
+    public Block getBlockAtPos(int pos) throws JMpqException {
+        if (pos < 0 || pos >= entryCount) {
+            throw new JMpqException("Invaild block position");
+        }
+        final long bitPos = (long) tableEntrySize * pos;
+        final long filePos = BitArray.getBits(fileTable, bitPos + bitIndexFilePos, bitCountFilePos);
+        final int normalSize = (int) BitArray.getBits(fileTable, bitPos + bitIndexFileSize, bitCountFileSize);
+        final int compressedSize = (int) BitArray.getBits(fileTable, bitPos + bitIndexCmpSize, bitCountCmpSize);
+        int fileFlags = 0;
+        if (flags.length != 0) {
+            final int flagIndex = (int) BitArray.getBits(fileTable, bitPos + bitIndexFlagIndex, bitCountFlagIndex);
+            if (flagIndex < flags.length) {
+                fileFlags = flags[flagIndex];
+            }
+        }
+        return new Block(filePos, compressedSize, normalSize, fileFlags);
+    }
+
+    public ArrayList<Block> getAllVaildBlocks() throws JMpqException {
+        ArrayList<Block> list = new ArrayList<>();
+        for (int i = 0; i < entryCount; i++) {
+            Block b = getBlockAtPos(i);
+            if (b.hasFlag(MpqFile.EXISTS)) {
+                list.add(b);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Gets the lower part of the name hash of the entry at the specified index.
+     *
+     * @param pos entry index.
+     * @return the name hash part.
+     */
+    public long getNameHash2(int pos) {
+        return BitArray.getBits(nameHashes, (long) bitTotalNameHash2 * pos, bitCountNameHash2);
+    }
+
+    /**
+     * @return bit mask selecting the part of a HET name hash stored in this
+     * table.
+     */
+    public long getNameHash2Mask() {
+        return (1L << bitCountNameHash2) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "BetTable [entryCount=" + entryCount + ", tableEntrySize=" + tableEntrySize + ", flagCount=" + flags.length + "]";
+    }
+}
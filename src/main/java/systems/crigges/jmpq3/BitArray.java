@@ -0,0 +1,65 @@
+package systems.crigges.jmpq3;
+
+/**
+ * Little endian bit array access as used by the bit packed HET and BET tables.
+ * Bit n of the array is bit (n % 8) of byte (n / 8).
+ */
+class BitArray {
+    private BitArray() {
+    }
+
+    /**
+     * Reads an unsigned value of up to 64 bits.
+     *
+     * @param data        the bit array.
+     * @param bitPosition position of the lowest bit of the value.
+     * @param bitCount    number of bits in the value.
+     * @return the value.
+     */
+    static long getBits(byte[] data, long bitPosition, int bitCount) {
+        long result = 0;
+        int shift = 0;
+        while (shift < bitCount) {
+            final int byteIndex = (int) (bitPosition >>> 3);
+            final int bitOffset = (int) (bitPosition & 7);
+            final int take = Math.min(8 - bitOffset, bitCount - shift);
+            final long bits = ((data[byteIndex] & 0xFF) >>> bitOffset) & ((1 << take) - 1);
+            result |= bits << shift;
+            shift += take;
+            bitPosition += take;
+        }
+        return result;
+    }
+
+    /**
+     * Writes an unsigned value of up to 64 bits.
+     *
+     * @param data        the bit array.
+     * @param bitPosition position of the lowest bit of the value.
+     * @param bitCount    number of bits in the value.
+     * @param value       the value.
+     */
+    static void setBits(byte[] data, long bitPosition, int bitCount, long value) {
+        int shift = 0;
+        while (shift < bitCount) {
+            final int byteIndex = (int) (bitPosition >>> 3);
+            final int bitOffset = (int) (bitPosition & 7);
+            final int take = Math.min(8 - bitOffset, bitCount - shift);
+            final int mask = ((1 << take) - 1) << bitOffset;
+            final int bits = ((int) (value >>> shift) << bitOffset) & mask;
+            data[byteIndex] = (byte) ((data[byteIndex] & ~mask) | bits);
+            shift += take;
+            bitPosition += take;
+        }
+    }
+
+    /**
+     * Gets the number of bits required to represent the given unsigned value.
+     *
+     * @param maxValue the largest value to store.
+     * @return the bit count, 0 for a value of 0.
+     */
+    static int getNecessaryBitCount(long maxValue) {
+        return 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+}
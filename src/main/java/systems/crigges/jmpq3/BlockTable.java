@@ -6,14 +6,19 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 
 import static systems.crigges.jmpq3.MpqFile.*;
 
 public class BlockTable {
     private final ByteBuffer blockMap;
     private final int size;
+    /**
+     * High 16 bits of the block file positions, null if the archive has no
+     * hi-block table.
+     */
+    private short[] hiBlockTable;
 
     public BlockTable(ByteBuffer buf) throws IOException {
         this.size = (buf.capacity() / 16);
@@ -23,7 +28,22 @@ public class BlockTable {
         this.blockMap.order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    public static void writeNewBlocktable(ArrayList<Block> blocks, int size, MappedByteBuffer buf) {
+    /**
+     * Reads the hi-block table of format version 1 and newer archives. It
+     * holds one unencrypted 16 bit value per block which extends the file
+     * position of that block to 48 bits.
+     *
+     * @param buf buffer positioned at the start of the hi-block table.
+     */
+    public void readHiBlockTable(ByteBuffer buf) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        hiBlockTable = new short[size];
+        for (int i = 0; i < size; i++) {
+            hiBlockTable[i] = buf.getShort();
+        }
+    }
+
+    public static void writeNewBlocktable(ArrayList<Block> blocks, int size, ByteBuffer buf) {
         ByteBuffer temp = ByteBuffer.allocate(size * 16);
         temp.order(ByteOrder.LITTLE_ENDIAN);
         for (Block b : blocks) {
@@ -34,13 +54,40 @@ public class BlockTable {
             throw new BufferOverflowException(); 
     }
 
+    /**
+     * Checks if any of the blocks is located beyond the 4 GB boundary and so
+     * requires a hi-block table.
+     *
+     * @param blocks the blocks to check
+     * @return true if a hi-block table must be written
+     */
+    public static boolean needsHiBlockTable(List<Block> blocks) {
+        for (Block b : blocks) {
+            if ((b.getFilePos() >>> 32) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void writeHiBlockTable(List<Block> blocks, ByteBuffer buf) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        for (Block b : blocks) {
+            buf.putShort((short) (b.getFilePos() >>> 32));
+        }
+    }
+
     public Block getBlockAtPos(int pos) throws JMpqException {
         if ((pos < 0) || (pos > this.size)) {
             throw new JMpqException("Invaild block position");
         }
         this.blockMap.position(pos * 16);
         try {
-            return new Block(this.blockMap);
+            Block b = new Block(this.blockMap);
+            if (hiBlockTable != null) {
+                b.filePos |= (hiBlockTable[pos] & 0xFFFFL) << 32;
+            }
+            return b;
         } catch (IOException e) {
             throw new JMpqException(e);
         }
@@ -64,7 +111,7 @@ public class BlockTable {
         private int flags;
 
         public Block(ByteBuffer buf) throws IOException {
-            this.filePos = buf.getInt();
+            this.filePos = buf.getInt() & 0xFFFFFFFFL;
             this.compressedSize = buf.getInt();
             this.normalSize = buf.getInt();
             this.flags = buf.getInt();
@@ -84,8 +131,8 @@ public class BlockTable {
             bb.putInt(this.flags);
         }
 
-        public int getFilePos() {
-            return (int) this.filePos;
+        public long getFilePos() {
+            return this.filePos;
         }
 
         public int getCompressedSize() {
@@ -100,7 +147,7 @@ public class BlockTable {
             return this.flags;
         }
 
-        public void setFilePos(int filePos) {
+        public void setFilePos(long filePos) {
             this.filePos = filePos;
         }
 
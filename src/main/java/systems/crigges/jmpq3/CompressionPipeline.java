@@ -0,0 +1,337 @@
+package systems.crigges.jmpq3;
+
+import systems.crigges.jmpq3.compression.FileCompression;
+import systems.crigges.jmpq3.compression.RecompressOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Reads the sectors of new files and compresses them on a pool of worker
+ * threads while the archive is written.
+ * <p>
+ * Every sector becomes a separate task, so a single large file is spread over
+ * all workers just like many small ones. Sectors are read and submitted ahead
+ * of the writer up to a limit of buffered data, continuing with the following
+ * files once a file is read completely. The writer takes the files in order
+ * with {@link #next()} and their sectors in order through the
+ * {@link Job}, so file positions and the resulting archive do not depend on
+ * the order in which tasks complete. A sector which no worker has started yet
+ * is compressed by the writer itself.
+ * <p>
+ * With deduplication, files which fit into the read ahead limit are read
+ * completely when they are opened and their content is hashed. A file with the same content as an
+ * earlier file is not compressed at all, the writer stores it as a
+ * {@link Job#getDuplicateOf() duplicate} sharing the block of the earlier
+ * file. This requires the same compression to be selected for both files,
+ * as the shared block is stored the way the earlier file selected. New files
+ * are never encrypted, so their blocks differ in nothing else.
+ * <p>
+ * The compression of each file is selected by the
+ * {@link RecompressOptions#policy compression policy} from its first sector
+ * when the file is opened. Without recompression sectors are only stored,
+ * which is not worth distributing, so no worker threads are used and each
+ * sector is read when the writer needs it.
+ */
+class CompressionPipeline implements AutoCloseable {
+    /**
+     * Maximum amount of sector data read ahead of the writer.
+     */
+    private static final long MAX_BYTES_AHEAD = 64 * 1024 * 1024;
+
+    private final ExecutorService executor;
+    private final RecompressOptions options;
+    private final int sectorSize;
+    private final Iterator<String> names;
+    private final Function<String, FileSource> sources;
+    /**
+     * Opened files which are not completely written yet, the first one is
+     * being written.
+     */
+    private final ArrayDeque<Job> opened = new ArrayDeque<>();
+    /**
+     * Content hashes and compressions of the opened files, mapped to the
+     * first file name, or null without deduplication.
+     */
+    private final Map<List<Object>, String> contents;
+    private long bytesAhead;
+
+    /**
+     * A file being read, compressed and written.
+     */
+    class Job implements MpqFile.SectorSource, MpqFile.SectorCompressor {
+        private final String name;
+        private final long size;
+        private final int sectorCount;
+        private final ReadableByteChannel channel;
+        private final FileCompression compression;
+        private String duplicateOf;
+        private int sectorsRead;
+        private final ArrayDeque<byte[]> sectors = new ArrayDeque<>();
+        private final ArrayDeque<FutureTask<byte[]>> tasks = new ArrayDeque<>();
+
+        private Job(String name, FileSource source) throws IOException {
+            this.name = name;
+            size = source.size();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new JMpqException("Unsupported size of file " + name + ": " + size);
+            }
+            sectorCount = (int) ((size + sectorSize - 1) / sectorSize);
+            channel = source.open();
+            if (sectorCount == 0) {
+                channel.close();
+                compression = FileCompression.STORE;
+                return;
+            }
+            final byte[] sample = readSector();
+            compression = options.recompress ? options.policy.select(name, size, sample, options) : FileCompression.STORE;
+            queueSector(sample, false);
+            if (contents != null && size <= MAX_BYTES_AHEAD) {
+                readContent();
+            } else if (executor != null) {
+                tasks.forEach(executor::execute);
+            }
+        }
+
+        /**
+         * Reads the whole file and hashes it. Unless the content is a
+         * duplicate of a file with the same compression, its sectors are
+         * submitted for compression.
+         */
+        private void readContent() throws IOException {
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            digest.update(sectors.peek());
+            while (hasUnreadSectors()) {
+                final byte[] sector = readSector();
+                queueSector(sector, false);
+                digest.update(sector);
+            }
+            duplicateOf = contents.putIfAbsent(Arrays.asList(ByteBuffer.wrap(digest.digest()), compression), name);
+            if (duplicateOf != null) {
+                for (byte[] sector : sectors) {
+                    bytesAhead -= sector.length;
+                }
+                sectors.clear();
+                tasks.clear();
+            } else if (executor != null) {
+                tasks.forEach(executor::execute);
+            }
+        }
+
+        /**
+         * @return the file name
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the uncompressed file size
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the name of an earlier file with the same content and
+         * compression, or null if the content is not a duplicate
+         */
+        String getDuplicateOf() {
+            return duplicateOf;
+        }
+
+        private boolean hasUnreadSectors() {
+            return sectorsRead < sectorCount;
+        }
+
+        private byte[] readSector() throws IOException {
+            final int length = (int) Math.min(sectorSize, size - (long) sectorsRead * sectorSize);
+            final byte[] sector = FileSource.readSector(channel, length, name);
+            if (++sectorsRead == sectorCount) {
+                channel.close();
+            }
+            bytesAhead += length;
+            return sector;
+        }
+
+        private void queueSector(byte[] sector, boolean submit) {
+            final FutureTask<byte[]> task = new FutureTask<>(() -> compressSector(sector));
+            if (submit && executor != null) {
+                executor.execute(task);
+            }
+            sectors.add(sector);
+            tasks.add(task);
+        }
+
+        private byte[] compressSector(byte[] sector) {
+            if (compression.getCodec() == FileCompression.Codec.STORE) {
+                return null;
+            }
+            final long start = System.nanoTime();
+            final byte[] compressed = MpqFile.compressSector(sector, compression, options);
+            options.policy.compressed(compression, sector.length, System.nanoTime() - start);
+            return compressed;
+        }
+
+        /**
+         * Gets the next uncompressed sector, reading it if it was not read
+         * ahead. Tops up the sectors read ahead for the workers.
+         *
+         * @param index  the sector index
+         * @param length the sector length
+         * @return the sector
+         * @throws IOException if the sector cannot be read
+         */
+        @Override
+        public byte[] read(int index, int length) throws IOException {
+            if (executor != null) {
+                readAhead();
+            }
+            if (sectors.isEmpty()) {
+                queueSector(readSector(), true);
+            }
+            return sectors.peek();
+        }
+
+        /**
+         * Gets the compressed sector of the last read sector, waiting for it
+         * if a worker is compressing it.
+         *
+         * @param index  the sector index
+         * @param sector ignored, the sector was already submitted
+         * @return the compressed sector, or null if compression failed
+         */
+        @Override
+        public byte[] compress(int index, byte[] sector) {
+            bytesAhead -= sectors.poll().length;
+            final FutureTask<byte[]> task = tasks.poll();
+            // does nothing if a worker already started the task
+            task.run();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for compression");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        private void close() throws IOException {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @param options     the compression options
+     * @param sectorSize  the sector size of the new archive
+     * @param deduplicate whether files with the same content are detected
+     * @param names       the names of the files to compress, in archive order
+     * @param sources     provides the file contents
+     */
+    CompressionPipeline(RecompressOptions options, int sectorSize, boolean deduplicate, Iterator<String> names,
+                        Function<String, FileSource> sources) {
+        this.options = options;
+        this.sectorSize = sectorSize;
+        this.contents = deduplicate ? new HashMap<>() : null;
+        this.names = names;
+        this.sources = sources;
+        final int threads = Runtime.getRuntime().availableProcessors();
+        if (options.recompress && threads > 1) {
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "jmpq-compress");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * @return if there are more files
+     */
+    boolean hasNext() {
+        return opened.size() > 1 || names.hasNext();
+    }
+
+    /**
+     * Gets the next file, reading ahead the following sectors for the
+     * workers.
+     *
+     * @return the job of the next file
+     * @throws IOException if a file cannot be opened or read
+     */
+    Job next() throws IOException {
+        if (!opened.isEmpty()) {
+            opened.poll().close();
+        }
+        if (opened.isEmpty()) {
+            openNext();
+        }
+        if (executor != null) {
+            readAhead();
+        }
+        return opened.peek();
+    }
+
+    private void openNext() throws IOException {
+        final String name = names.next();
+        opened.add(new Job(name, sources.apply(name)));
+    }
+
+    private void readAhead() throws IOException {
+        while (bytesAhead < MAX_BYTES_AHEAD) {
+            final Job last = opened.peekLast();
+            if (last.hasUnreadSectors()) {
+                last.queueSector(last.readSector(), true);
+            } else if (names.hasNext()) {
+                openNext();
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        IOException failure = null;
+        for (Job job : opened) {
+            try {
+                job.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package systems.crigges.jmpq3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the edits staged in an editor, kept in a file next
+ * to the archive.
+ * <p>
+ * The journal starts with a header followed by records. Each record is an
+ * insert with the complete file content, a delete, a rename or a commit
+ * marker. All records end with a CRC-32 of the record. A checkpoint appends
+ * the edits staged since the last checkpoint, forces them to disk and only
+ * then appends and forces the commit marker, so a checkpoint either
+ * completes or is discarded as a whole.
+ * <p>
+ * When the archive is opened again, the edits up to the last commit marker
+ * are staged again (roll-forward) and anything after it is cut off
+ * (rollback). Replaying the journal is idempotent, so it does not matter
+ * whether the archive was rebuilt before the journal was deleted.
+ */
+class EditJournal {
+    private static final int MAGIC = ByteBuffer.wrap(new byte[]{'J', 'M', 'P', 'J'}).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    private static final byte COMMIT = 3;
+    private static final byte RENAME = 4;
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+    private final Path path;
+    /**
+     * The edits staged since the last checkpoint.
+     */
+    private final ArrayList<Edit> pending = new ArrayList<>();
+
+    /**
+     * @param archive the archive file
+     */
+    EditJournal(Path archive) {
+        this.path = getPath(archive);
+    }
+
+    /**
+     * @param archive the archive file
+     * @return the journal file of the archive
+     */
+    static Path getPath(Path archive) {
+        return archive.resolveSibling(archive.getFileName() + ".journal");
+    }
+
+    /**
+     * Stages an insert for the next checkpoint.
+     *
+     * @param name   the file name
+     * @param source the file content
+     */
+    void insert(String name, FileSource source) {
+        pending.add(new Edit(INSERT, name, source));
+    }
+
+    /**
+     * Stages a delete for the next checkpoint.
+     *
+     * @param name the file name
+     */
+    void delete(String name) {
+        pending.add(new Edit(DELETE, name, (FileSource) null));
+    }
+
+    /**
+     * Stages a rename for the next checkpoint.
+     *
+     * @param name    the file name
+     * @param newName the new file name
+     */
+    void rename(String name, String newName) {
+        pending.add(new Edit(RENAME, name, newName));
+    }
+
+    /**
+     * Appends the staged edits and a commit marker to the journal. If writing
+     * fails the journal is cut back to the last commit and the edits stay
+     * staged.
+     *
+     * @return the written edits, inserts read their content from the journal
+     * @throws IOException if the journal cannot be written
+     */
+    List<Edit> commit() throws IOException {
+        ArrayList<Edit> committed = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long start = channel.size();
+            try {
+                long pos = start;
+                if (pos == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(MAGIC).putInt(VERSION).flip();
+                    pos = write(channel, header, pos);
+                }
+                for (Edit edit : pending) {
+                    pos = writeRecord(channel, edit, pos, committed);
+                }
+                channel.force(true);
+                ByteBuffer marker = record(COMMIT, null, 0);
+                CRC32 crc = new CRC32();
+                crc.update(marker.array(), 0, marker.limit());
+                marker.limit(marker.capacity()).putInt(marker.capacity() - 4, (int) crc.getValue());
+                write(channel, marker, pos);
+                channel.force(true);
+            } catch (IOException | RuntimeException e) {
+                channel.truncate(start);
+                throw e;
+            }
+        }
+        pending.clear();
+        return committed;
+    }
+
+    /**
+     * Reads the committed edits of the journal and cuts off anything after
+     * the last commit marker. A journal without committed edits is deleted.
+     *
+     * @return the committed edits in journal order, empty if there is no journal
+     * @throws IOException if the journal cannot be read
+     */
+    List<Edit> recover() throws IOException {
+        ArrayList<Edit> committed = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return committed;
+        }
+        long committedEnd = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.read(header, 0) == HEADER_SIZE && header.getInt(0) == MAGIC && header.getInt(4) == VERSION) {
+                ArrayList<Edit> edits = new ArrayList<>();
+                long pos = HEADER_SIZE;
+                try {
+                    while (pos < channel.size()) {
+                        CRC32 crc = new CRC32();
+                        ByteBuffer type = read(channel, pos, 1, crc);
+                        pos += 1;
+                        if (type.get(0) == COMMIT) {
+                            if (read(channel, pos, 4, null).getInt(0) != (int) crc.getValue()) {
+                                break;
+                            }
+                            pos += 4;
+                            committed.addAll(edits);
+                            edits.clear();
+                            committedEnd = pos;
+                            continue;
+                        }
+                        if (type.get(0) != INSERT && type.get(0) != DELETE && type.get(0) != RENAME) {
+                            break;
+                        }
+                        byte[] name = readName(channel, pos, crc);
+                        if (name == null) {
+                            break;
+                        }
+                        pos += 4 + name.length;
+                        byte[] newName = null;
+                        if (type.get(0) == RENAME) {
+                            newName = readName(channel, pos, crc);
+                            if (newName == null) {
+                                break;
+                            }
+                            pos += 4 + newName.length;
+                        }
+                        FileSource source = null;
+                        if (type.get(0) == INSERT) {
+                            long size = read(channel, pos, 8, crc).getLong(0);
+                            pos += 8;
+                            if (size < 0 || size > channel.size() - pos) {
+                                break;
+                            }
+                            source = FileSource.of(path, pos, size);
+                            for (long done = 0; done < size; ) {
+                                int length = (int) Math.min(COPY_BUFFER_SIZE, size - done);
+                                read(channel, pos + done, length, crc);
+                                done += length;
+                            }
+                            pos += size;
+                        }
+                        if (read(channel, pos, 4, null).getInt(0) != (int) crc.getValue()) {
+                            break;
+                        }
+                        pos += 4;
+                        String fileName = new String(name, StandardCharsets.UTF_8);
+                        edits.add(newName != null ? new Edit(RENAME, fileName, new String(newName, StandardCharsets.UTF_8))
+                            : new Edit(type.get(0), fileName, source));
+                    }
+                } catch (EOFException e) {
+                    // torn record after the last commit
+                }
+            }
+            if (committedEnd > 0) {
+                channel.truncate(committedEnd);
+            }
+        }
+        if (committedEnd == 0) {
+            Files.deleteIfExists(path);
+        }
+        return committed;
+    }
+
+    /**
+     * Deletes the journal and any staged edits, after they were written to
+     * the archive.
+     *
+     * @throws IOException if the journal cannot be deleted
+     */
+    void delete() throws IOException {
+        pending.clear();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Writes a record, streaming the content of inserts into the journal.
+     *
+     * @param channel   the journal channel
+     * @param edit      the edit
+     * @param pos       the position to write the record to
+     * @param committed receives the written edit
+     * @return the position after the record
+     * @throws IOException if reading the content or writing fails
+     */
+    private long writeRecord(FileChannel channel, Edit edit, long pos, List<Edit> committed) throws IOException {
+        byte[] name = edit.name.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        if (edit.type == DELETE) {
+            ByteBuffer record = record(DELETE, name, 0);
+            crc.update(record.array(), 0, record.limit());
+            pos = write(channel, record, pos);
+            committed.add(edit);
+        } else if (edit.type == RENAME) {
+            byte[] newName = edit.newName.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = record(RENAME, name, 4 + newName.length);
+            record.position(5 + name.length);
+            record.putInt(newName.length).put(newName).position(0);
+            crc.update(record.array(), 0, record.limit());
+            pos = write(channel, record, pos);
+            committed.add(edit);
+        } else {
+            long size = edit.source.size();
+            ByteBuffer record = record(INSERT, name, 8);
+            record.putLong(record.limit() - 8, size);
+            crc.update(record.array(), 0, record.limit());
+            pos = write(channel, record, pos);
+            final long dataPos = pos;
+            try (ReadableByteChannel content = edit.source.open()) {
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                for (long done = 0; done < size; ) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), size - done));
+                    if (content.read(buffer) < 0) {
+                        throw new JMpqException("Content of " + edit.name + " is shorter than its size");
+                    }
+                    buffer.flip();
+                    crc.update(buffer.array(), 0, buffer.limit());
+                    done += buffer.limit();
+                    pos = write(channel, buffer, pos);
+                }
+            }
+            committed.add(new Edit(INSERT, edit.name, FileSource.of(path, dataPos, size), edit.source));
+        }
+        ByteBuffer checksum = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        checksum.putInt(0, (int) crc.getValue());
+        return write(channel, checksum, pos);
+    }
+
+    /**
+     * @param type  the record type
+     * @param name  the encoded file name, null for commit markers
+     * @param extra the number of bytes following the name
+     * @return the record head, with room for the checksum after the limit for commit markers
+     */
+    private static ByteBuffer record(byte type, byte[] name, int extra) {
+        if (name == null) {
+            ByteBuffer marker = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+            marker.put(type).flip();
+            return marker;
+        }
+        ByteBuffer record = ByteBuffer.allocate(5 + name.length + extra).order(ByteOrder.LITTLE_ENDIAN);
+        record.put(type).putInt(name.length).put(name);
+        record.position(0);
+        return record;
+    }
+
+    private static long write(FileChannel channel, ByteBuffer data, long pos) throws IOException {
+        while (data.hasRemaining()) {
+            pos += channel.write(data, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Reads a length prefixed file name.
+     *
+     * @param channel the journal channel
+     * @param pos     the position of the name
+     * @param crc     the checksum to update
+     * @return the encoded name, or null if the length is invalid
+     * @throws IOException if the journal ends before the name
+     */
+    private static byte[] readName(FileChannel channel, long pos, CRC32 crc) throws IOException {
+        int length = read(channel, pos, 4, crc).getInt(0);
+        if (length < 0 || length > channel.size() - pos - 4) {
+            return null;
+        }
+        return read(channel, pos + 4, length, crc).array();
+    }
+
+    /**
+     * Reads a range of the journal.
+     *
+     * @param channel the journal channel
+     * @param pos     the position of the range
+     * @param length  the length of the range
+     * @param crc     the checksum to update, or null
+     * @return the data
+     * @throws IOException if the journal ends before the range
+     */
+    private static ByteBuffer read(FileChannel channel, long pos, int length, CRC32 crc) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (data.hasRemaining()) {
+            if (channel.read(data, pos + data.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        if (crc != null) {
+            crc.update(data.array(), 0, length);
+        }
+        return data;
+    }
+
+    /**
+     * A journaled insert, delete or rename.
+     */
+    static class Edit {
+        private final byte type;
+        private final String name;
+        private final String newName;
+        private final FileSource source;
+        private final FileSource staged;
+
+        private Edit(byte type, String name, FileSource source) {
+            this(type, name, null, source, source);
+        }
+
+        private Edit(byte type, String name, FileSource source, FileSource staged) {
+            this(type, name, null, source, staged);
+        }
+
+        private Edit(byte type, String name, String newName) {
+            this(type, name, newName, null, null);
+        }
+
+        private Edit(byte type, String name, String newName, FileSource source, FileSource staged) {
+            this.type = type;
+            this.name = name;
+            this.newName = newName;
+            this.source = source;
+            this.staged = staged;
+        }
+
+        boolean isInsert() {
+            return type == INSERT;
+        }
+
+        boolean isRename() {
+            return type == RENAME;
+        }
+
+        /**
+         * @return the new name of a rename, null for other edits
+         */
+        String getNewName() {
+            return newName;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the content of an insert, null for deletes
+         */
+        FileSource getSource() {
+            return source;
+        }
+
+        /**
+         * @return the content the insert was staged with
+         */
+        FileSource getStaged() {
+            return staged;
+        }
+    }
+}
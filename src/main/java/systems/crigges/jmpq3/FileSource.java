@@ -0,0 +1,155 @@
+package systems.crigges.jmpq3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The content of an inserted file. Nothing is read until the archive is
+ * written, which then reads the content sector by sector.
+ */
+abstract class FileSource {
+    /**
+     * @return the content size in bytes
+     * @throws IOException if the size cannot be determined
+     */
+    abstract long size() throws IOException;
+
+    /**
+     * Opens the content for reading from the start.
+     *
+     * @return a channel providing the content
+     * @throws IOException if the content cannot be opened
+     */
+    abstract ReadableByteChannel open() throws IOException;
+
+    /**
+     * @return the bytes of the content held in memory
+     */
+    long memorySize() {
+        return 0;
+    }
+
+    /**
+     * @param data the content
+     * @return a source of the specified content
+     */
+    static FileSource of(byte[] data) {
+        return new FileSource() {
+            @Override
+            long size() {
+                return data.length;
+            }
+
+            @Override
+            ReadableByteChannel open() {
+                return Channels.newChannel(new ByteArrayInputStream(data));
+            }
+
+            @Override
+            long memorySize() {
+                return data.length;
+            }
+        };
+    }
+
+    /**
+     * @param path the file providing the content
+     * @return a source reading the specified file
+     */
+    static FileSource of(Path path) {
+        return new FileSource() {
+            @Override
+            long size() throws IOException {
+                return Files.size(path);
+            }
+
+            @Override
+            ReadableByteChannel open() throws IOException {
+                return Files.newByteChannel(path, StandardOpenOption.READ);
+            }
+        };
+    }
+
+    /**
+     * @param path   the file providing the content
+     * @param offset the position of the content in the file
+     * @param size   the content size in bytes
+     * @return a source reading the specified range of the file
+     */
+    static FileSource of(Path path, long offset, long size) {
+        return new FileSource() {
+            @Override
+            long size() {
+                return size;
+            }
+
+            @Override
+            ReadableByteChannel open() throws IOException {
+                final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                channel.position(offset);
+                return channel;
+            }
+        };
+    }
+
+    /**
+     * Creates a source of a channel. The channel can be read only once and is
+     * closed after it was read.
+     *
+     * @param channel the channel providing the content
+     * @param size    the content size in bytes
+     * @return a source reading the specified channel
+     */
+    static FileSource of(ReadableByteChannel channel, long size) {
+        return new FileSource() {
+            @Override
+            long size() {
+                return size;
+            }
+
+            @Override
+            ReadableByteChannel open() {
+                return channel;
+            }
+        };
+    }
+
+    /**
+     * Creates a source of a stream. The stream can be read only once and is
+     * closed after it was read.
+     *
+     * @param stream the stream providing the content
+     * @param size   the content size in bytes
+     * @return a source reading the specified stream
+     */
+    static FileSource of(InputStream stream, long size) {
+        return of(Channels.newChannel(stream), size);
+    }
+
+    /**
+     * Reads the next sector of a content channel.
+     *
+     * @param channel the channel
+     * @param length  the sector length
+     * @param name    the file name used in error messages
+     * @return the sector
+     * @throws IOException if reading fails or the content is too short
+     */
+    static byte[] readSector(ReadableByteChannel channel, int length, String name) throws IOException {
+        final ByteBuffer sector = ByteBuffer.allocate(length);
+        while (sector.hasRemaining()) {
+            if (channel.read(sector) < 0) {
+                throw new JMpqException("Content of " + name + " is shorter than its size");
+            }
+        }
+        return sector.array();
+    }
+}
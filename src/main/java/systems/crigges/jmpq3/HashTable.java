@@ -5,6 +5,7 @@ import systems.crigges.jmpq3.security.MPQHashGenerator;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.BitSet;
 
 /**
  * MPQ hash table. Used to map file paths to block table indices.
@@ -309,6 +310,21 @@ public class HashTable {
         return count;
     }
 
+    /**
+     * Get the block table indices which have at least one mapping.
+     * 
+     * @return set of used block table indices.
+     */
+    public BitSet getUsedBlockIndices() {
+        final BitSet used = new BitSet();
+        for (Bucket bucket : buckets) {
+            if (bucket.blockTableIndex >= 0) {
+                used.set(bucket.blockTableIndex);
+            }
+        }
+        return used;
+    }
+
     /**
      * Plain old data class to internally represent a uniquely identifiable
      * file.
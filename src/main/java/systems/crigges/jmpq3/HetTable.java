@@ -0,0 +1,206 @@
+package systems.crigges.jmpq3;
+
+import systems.crigges.jmpq3.security.JenkinsHash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * MPQ HET (hash entry table). Used by format version 2 and newer archives to
+ * map file paths to BET table indices.
+ * <p>
+ * Each file path is identified by a Jenkins hash which is truncated to the
+ * name hash bit size of the table. The top 8 bits of that hash are stored in a
+ * byte array used for probing, the remaining bits are stored in the BET table
+ * and used to confirm a match. BET indices are bit packed.
+ */
+public class HetTable {
+    /**
+     * HET table signature, 'HET\x1A'.
+     */
+    public static final int SIGNATURE = 0x1A544548;
+
+    /**
+     * Name hash value representing a free table entry.
+     */
+    private static final int ENTRY_FREE = 0;
+
+    /**
+     * Size of the table header, excluding the extended table header.
+     */
+    private static final int HEADER_SIZE = 32;
+
+    private final int entryCount;
+    private final int totalCount;
+    private final int nameHashBitSize;
+    private final int indexSizeTotal;
+    private final int indexSize;
+
+    /**
+     * The top 8 bits of the name hash of each entry.
+     */
+    private final byte[] nameHashes;
+
+    /**
+     * Bit packed BET indices of each entry.
+     */
+    private final byte[] betIndexes;
+
+    private final long andMask;
+    private final long orMask;
+
+    /**
+     * Reads a HET table.
+     *
+     * @param buf decrypted and decompressed table data following the extended
+     *            table header.
+     * @throws JMpqException if the table is damaged.
+     */
+    public HetTable(ByteBuffer buf) throws JMpqException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.getInt(); // table size
+        entryCount = buf.getInt();
+        totalCount = buf.getInt();
+        nameHashBitSize = buf.getInt();
+        indexSizeTotal = buf.getInt();
+        buf.getInt(); // index size extra
+        indexSize = buf.getInt();
+        final int indexTableSize = buf.getInt();
+
+        // every lookup stays within the arrays read below
+        if (entryCount < 0 || totalCount <= 0 || nameHashBitSize < 8 || nameHashBitSize > 64 || indexSize < 0
+            || indexSize > 32 || indexSizeTotal < indexSize || indexSizeTotal > 64 || indexTableSize < 0
+            || (long) indexTableSize * 8 < (long) indexSizeTotal * totalCount
+            || buf.remaining() < totalCount + (long) indexTableSize) {
+            throw new JMpqException("Bad HET table.");
+        }
+
+        nameHashes = new byte[totalCount];
+        buf.get(nameHashes);
+        betIndexes = new byte[indexTableSize];
+        buf.get(betIndexes);
+
+        andMask = nameHashBitSize == 64 ? -1L : (1L << nameHashBitSize) - 1;
+        orMask = 1L << (nameHashBitSize - 1);
+    }
+
+    /**
+     * Constructs a HET table mapping each of the specified file paths to its
+     * index in the list, using 64 bit name hashes.
+     *
+     * @param fileNames file path names in BET table order.
+     */
+    public HetTable(List<String> fileNames) {
+        entryCount = fileNames.size();
+        // keep at least one entry free so that probing terminates
+        totalCount = Math.max(entryCount * 4 / 3, entryCount + 1);
+        nameHashBitSize = 64;
+        indexSizeTotal = BitArray.getNecessaryBitCount(entryCount);
+        indexSize = indexSizeTotal;
+        andMask = -1L;
+        orMask = 1L << 63;
+
+        nameHashes = new byte[totalCount];
+        betIndexes = new byte[(int) (((long) indexSizeTotal * totalCount + 7) / 8)];
+        for (int i = 0; i < entryCount; i++) {
+            final long nameHash = getNameHash(fileNames.get(i));
+            int index = (int) Long.remainderUnsigned(nameHash, totalCount);
+            while ((nameHashes[index] & 0xFF) != ENTRY_FREE) {
+                index = (index + 1) % totalCount;
+            }
+            nameHashes[index] = (byte) (nameHash >>> 56);
+            BitArray.setBits(betIndexes, (long) indexSizeTotal * index, indexSize, i);
+        }
+    }
+
+    /**
+     * @return the size of the table including the extended table header.
+     */
+    public int getTableSize() {
+        return 12 + HEADER_SIZE + nameHashes.length + betIndexes.length;
+    }
+
+    /**
+     * Writes the unencrypted table including the extended table header.
+     *
+     * @param dest destination buffer.
+     */
+    public void writeToBuffer(ByteBuffer dest) {
+        dest.order(ByteOrder.LITTLE_ENDIAN);
+        final int dataSize = HEADER_SIZE + nameHashes.length + betIndexes.length;
+        dest.putInt(SIGNATURE);
+        dest.putInt(1);
+        dest.putInt(dataSize);
+
+        dest.putInt(dataSize);
+        dest.putInt(entryCount);
+        dest.putInt(totalCount);
+        dest.putInt(nameHashBitSize);
+        dest.putInt(indexSizeTotal);
+        dest.putInt(0); // index size extra
+        dest.putInt(indexSize);
+        dest.putInt(betIndexes.length);
+        dest.put(nameHashes);
+        dest.put(betIndexes);
+    }
+
+    /**
+     * Calculates the name hash of the specified file as stored by this table.
+     *
+     * @param name file path name.
+     * @return the truncated name hash.
+     */
+    public long getNameHash(String name) {
+        return (JenkinsHash.hashFileName(name) & andMask) | orMask;
+    }
+
+    /**
+     * Get the BET table index for the specified file.
+     *
+     * @param name     file path name.
+     * @param betTable the BET table used to confirm matches.
+     * @return BET table index, or -1 if the file has no mapping.
+     */
+    public int getFileIndex(String name, BetTable betTable) {
+        final long nameHash = getNameHash(name);
+        final int nameHash1 = (int) (nameHash >>> (nameHashBitSize - 8)) & 0xFF;
+        final long nameHash2 = nameHash & betTable.getNameHash2Mask();
+
+        final int start = (int) Long.remainderUnsigned(nameHash, totalCount);
+        int index = start;
+        do {
+            final int entry = nameHashes[index] & 0xFF;
+            if (entry == ENTRY_FREE) {
+                break;
+            }
+            if (entry == nameHash1) {
+                final int fileIndex = (int) BitArray.getBits(betIndexes, (long) indexSizeTotal * index, indexSize);
+                if (fileIndex < betTable.size() && betTable.getNameHash2(fileIndex) == nameHash2) {
+                    return fileIndex;
+                }
+            }
+            index = (index + 1) % totalCount;
+        } while (index != start);
+
+        return -1;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    public int getNameHashBitSize() {
+        return nameHashBitSize;
+    }
+
+    @Override
+    public String toString() {
+        return "HetTable [entryCount=" + entryCount + ", totalCount=" + totalCount + ", nameHashBitSize=" + nameHashBitSize
+            + ", indexSize=" + indexSize + "]";
+    }
+}
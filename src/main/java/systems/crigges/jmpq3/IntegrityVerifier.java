@@ -0,0 +1,155 @@
+package systems.crigges.jmpq3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Verifies the MD5 digests stored by format version 3 archives.
+ * <p>
+ * Every digest check is split into independent tasks which are run on a
+ * thread pool with one thread per CPU core. Data is streamed through the
+ * digests using positional reads, so memory use does not depend on the size
+ * of the verified regions.
+ */
+class IntegrityVerifier {
+    /**
+     * Size of the per thread read buffer.
+     */
+    private static final int READ_BUFFER_SIZE = 1 << 18;
+
+    /**
+     * Amount of chunk data verified by a single task.
+     */
+    private static final int TASK_SIZE = 1 << 22;
+
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(READ_BUFFER_SIZE));
+
+    /**
+     * Reads data at absolute file positions. Must be safe to use from
+     * multiple threads at once.
+     */
+    interface PositionalReader {
+        void readFully(ByteBuffer buffer, long pos) throws IOException;
+    }
+
+    private final PositionalReader reader;
+    private final List<Callable<String>> tasks = new ArrayList<>();
+
+    IntegrityVerifier(PositionalReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Adds a check of a single MD5 digest over a region. Digests which are
+     * all zero are considered absent and are not checked.
+     *
+     * @param name     description of the region used in failure messages
+     * @param pos      absolute start of the region
+     * @param length   length of the region
+     * @param expected the stored digest
+     */
+    void addDigest(String name, long pos, long length, byte[] expected) {
+        if (Arrays.equals(expected, new byte[expected.length])) {
+            return;
+        }
+        tasks.add(() -> Arrays.equals(digest(pos, length), expected) ? null : name + " MD5 mismatch");
+    }
+
+    /**
+     * Adds checks of the raw chunk digests of a region. The region is split
+     * into chunks of the given size and the array of chunk digests is stored
+     * directly after the region.
+     *
+     * @param name      description of the region used in failure messages
+     * @param pos       absolute start of the region
+     * @param length    length of the region
+     * @param chunkSize the raw chunk size
+     */
+    void addChunkDigests(String name, long pos, long length, int chunkSize) {
+        final long chunkCount = (length + chunkSize - 1) / chunkSize;
+        final long chunksPerTask = Math.max(1, TASK_SIZE / chunkSize);
+        for (long first = 0; first < chunkCount; first += chunksPerTask) {
+            final long firstChunk = first;
+            final long lastChunk = Math.min(chunkCount, first + chunksPerTask);
+            tasks.add(() -> {
+                ByteBuffer expected = ByteBuffer.allocate((int) ((lastChunk - firstChunk) * 16));
+                reader.readFully(expected, pos + length + firstChunk * 16);
+                byte[] expectedDigest = new byte[16];
+                expected.flip();
+                for (long i = firstChunk; i < lastChunk; i++) {
+                    expected.get(expectedDigest);
+                    long chunkOffset = i * chunkSize;
+                    if (!Arrays.equals(digest(pos + chunkOffset, Math.min(chunkSize, length - chunkOffset)), expectedDigest)) {
+                        return name + " chunk " + i + " MD5 mismatch";
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Runs all checks.
+     *
+     * @return descriptions of the failed checks, empty if all passed
+     * @throws IOException if reading fails
+     */
+    List<String> verify() throws IOException {
+        List<String> failures = new ArrayList<>();
+        if (tasks.isEmpty()) {
+            return failures;
+        }
+        final int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "jmpq-verify");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Future<String> result : executor.invokeAll(tasks)) {
+                String failure = result.get();
+                if (failure != null) {
+                    failures.add(failure);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Verification interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new JMpqException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    private byte[] digest(long pos, long length) throws IOException {
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final ByteBuffer buffer = READ_BUFFER.get();
+        while (length > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length));
+            reader.readFully(buffer, pos);
+            buffer.flip();
+            pos += buffer.remaining();
+            length -= buffer.remaining();
+            md5.update(buffer);
+        }
+        return md5.digest();
+    }
+}
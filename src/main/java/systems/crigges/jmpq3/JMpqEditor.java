@@ -4,6 +4,7 @@ import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import systems.crigges.jmpq3.BlockTable.Block;
+import systems.crigges.jmpq3.compression.CompressionUtil;
 import systems.crigges.jmpq3.compression.RecompressOptions;
 import systems.crigges.jmpq3.security.MPQEncryption;
 import systems.crigges.jmpq3.security.MPQHashGenerator;
@@ -11,13 +12,16 @@ import systems.crigges.jmpq3.security.MPQHashGenerator;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.*;
-import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 import static systems.crigges.jmpq3.MpqFile.*;
@@ -60,6 +64,12 @@ public class JMpqEditor implements AutoCloseable {
         KEY_BLOCK_TABLE = hasher.getHash();
     }
 
+    /**
+     * The listener used without {@link #setRebuildListener(RebuildListener)}.
+     */
+    private static final RebuildListener NO_LISTENER = new RebuildListener() {
+    };
+
     public static File tempDir;
     private AttributesFile attributes;
     /**
@@ -69,7 +79,11 @@ public class JMpqEditor implements AutoCloseable {
     /**
      * The fc.
      */
-    private final SeekableByteChannel fc;
+    private SeekableByteChannel fc;
+    /**
+     * The archive file path, null if the archive is a byte array.
+     */
+    private final Path mpqPath;
     /**
      * The header offset.
      */
@@ -102,6 +116,10 @@ public class JMpqEditor implements AutoCloseable {
      * The block table file position.
      */
     private long blockPos;
+    /**
+     * The hi-block table file position, 0 if there is none.
+     */
+    private long hiBlockPos;
     /**
      * The hash size.
      */
@@ -118,32 +136,112 @@ public class JMpqEditor implements AutoCloseable {
      * The block table.
      */
     private BlockTable blockTable;
+    /**
+     * The HET table file position, 0 if there is none.
+     */
+    private long hetPos;
+    /**
+     * The BET table file position, 0 if there is none.
+     */
+    private long betPos;
+    /**
+     * The stored HET table size, 0 if not specified by the header.
+     */
+    private long hetSize;
+    /**
+     * The stored BET table size, 0 if not specified by the header.
+     */
+    private long betSize;
+    /**
+     * The stored hash table size, 0 if not specified by the header.
+     */
+    private long hashTableSize;
+    /**
+     * The stored block table size, 0 if not specified by the header.
+     */
+    private long blockTableSize;
+    /**
+     * The stored hi-block table size, 0 if not specified by the header.
+     */
+    private long hiBlockTableSize;
+    /**
+     * The size of the raw data chunks covered by a MD5 digest, 0 if there are
+     * no raw chunk digests.
+     */
+    private int rawChunkSize;
+    /**
+     * The stored MD5 digests of the block, hash, hi-block, BET and HET tables
+     * and of the header, in that order. Null if the header has none.
+     */
+    private byte[][] headerDigests;
+    /**
+     * The HET table, null if the archive has none.
+     */
+    private HetTable hetTable;
+    /**
+     * The BET table, null if the archive has none.
+     */
+    private BetTable betTable;
     /**
      * The list file.
      */
     private Listfile listFile = new Listfile();
     /**
-     * The internal filename.
+     * The contents of the files to add.
      */
-    static class Either {
-        Path path;
-        byte[] data;
-
-        Either(Path path) {
-            this.path = path;
-        }
-
-        Either(byte[] data) {
-            this.data = data;
-        }
-
-    }
-    private final LinkedIdentityHashMap<String, Either> filenameToData = new LinkedIdentityHashMap<>();
-    /** The files to add. */
+    private final StagingStore filenameToData = new StagingStore(JMpqEditor::getScratchDir);
     /**
      * The keep header offset.
      */
     private boolean keepHeaderOffset = true;
+    /**
+     * Commit changes by appending to the archive instead of rebuilding it.
+     */
+    private boolean appendInPlace = false;
+    /**
+     * Store inserted files with identical content only once.
+     */
+    private boolean deduplicateFiles = false;
+    /**
+     * Receives the names of read files, null if accesses are not recorded.
+     */
+    private volatile AccessProfile accessRecorder;
+    /**
+     * The files placed at the front of the archive when it is rebuilt, null for the default order.
+     */
+    private AccessProfile layoutProfile;
+    /**
+     * Receives the progress of builds and can cancel them.
+     */
+    private RebuildListener rebuildListener = NO_LISTENER;
+    /**
+     * The progress of the current build, null outside of builds.
+     */
+    private RebuildProgress progress;
+    /**
+     * Whether or not the current build can still be cancelled.
+     */
+    private boolean cancellable;
+    /**
+     * The original names of renamed files by the file key of their new name.
+     */
+    private final Map<Long, String> renamedFiles = new HashMap<>();
+    /**
+     * The files of the archive which were deleted or renamed by re-inserting them.
+     */
+    private final Set<String> deletedFiles = new LinkedHashSet<>();
+    /**
+     * The journal of the staged edits, null if the archive cannot be journaled.
+     */
+    private EditJournal journal;
+    /**
+     * If files were inserted or deleted, or an external listfile was set.
+     */
+    private boolean dirty = false;
+    /**
+     * Counts the edits, a rebuild plan is only valid for the count it was made at.
+     */
+    private int editCount;
     /**
      * The new header size.
      */
@@ -172,6 +270,18 @@ public class JMpqEditor implements AutoCloseable {
      * The new block pos.
      */
     private long newBlockPos;
+    /**
+     * The new hi-block table pos, 0 if no hi-block table is written.
+     */
+    private long newHiBlockPos;
+    /**
+     * The new HET table pos, 0 if no HET table is written.
+     */
+    private long newHetPos;
+    /**
+     * The new BET table pos, 0 if no BET table is written.
+     */
+    private long newBetPos;
     /**
      * The new hash size.
      */
@@ -211,8 +321,13 @@ public class JMpqEditor implements AutoCloseable {
             final OpenOption[] fcOptions = canWrite ? new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE}
                 : new OpenOption[]{StandardOpenOption.READ};
             fc = FileChannel.open(mpqArchive, fcOptions);
+            mpqPath = mpqArchive;
 
             readMpq();
+            if (canWrite) {
+                journal = new EditJournal(mpqArchive);
+                recoverJournal();
+            }
         } catch (IOException e) {
             throw new JMpqException(mpqArchive.toAbsolutePath() + ": " + e.getMessage());
         }
@@ -223,9 +338,8 @@ public class JMpqEditor implements AutoCloseable {
         canWrite = !Arrays.asList(openOptions).contains(MPQOpenOption.READ_ONLY);
         legacyCompatibility = Arrays.asList(openOptions).contains(MPQOpenOption.FORCE_V0);
         try {
-            setupTempDir();
-
             fc = new SeekableInMemoryByteChannel(mpqArchive);
+            mpqPath = null;
 
             readMpq();
         } catch (IOException e) {
@@ -246,11 +360,41 @@ public class JMpqEditor implements AutoCloseable {
 
         readBlockTable();
 
+        readHetBetTables();
+
         readListFile();
 
         readAttributesFile();
     }
 
+    /**
+     * Stages the edits committed to the journal of an earlier editor again.
+     * Edits after the last checkpoint are discarded.
+     *
+     * @throws IOException if the journal cannot be read
+     */
+    private void recoverJournal() throws IOException {
+        List<EditJournal.Edit> edits = journal.recover();
+        for (EditJournal.Edit edit : edits) {
+            String name = edit.getName();
+            if (edit.isRename()) {
+                // skipped if the archive was written before the journal was deleted
+                if (listFile.containsFile(name) && !listFile.containsFile(edit.getNewName())) {
+                    stageRename(name, edit.getNewName());
+                }
+                continue;
+            }
+            if (edit.isInsert()) {
+                stageInsert(name, edit.getSource());
+            } else if (listFile.containsFile(name)) {
+                stageDelete(name);
+            }
+        }
+        if (!edits.isEmpty()) {
+            log.info("Recovered " + edits.size() + " journaled edits of " + mpqPath);
+        }
+    }
+
     /**
      * See {@link #JMpqEditor(Path, MPQOpenOption...)} }
      *
@@ -347,6 +491,8 @@ public class JMpqEditor implements AutoCloseable {
         try {
             // Read and apply listfile
             listFile = new Listfile(Files.readAllBytes(externalListfilePath.toPath()));
+            dirty = true;
+            editCount++;
             checkListfileEntries();
             // Operation succeeded and added a listfile so we can now write properly.
             // (as long as it wasn't read-only to begin with)
@@ -394,7 +540,7 @@ public class JMpqEditor implements AutoCloseable {
      * @throws JMpqException If retrieving valid blocks fails
      */
     private void checkListfileCompleteness(int hiddenFiles) throws JMpqException {
-        if (listFile.getFiles().size() <= blockTable.getAllVaildBlocks().size() - hiddenFiles) {
+        if (listFile.getFiles().size() <= getAllVaildBlocks().size() - hiddenFiles) {
             log.warn("mpq's listfile is incomplete. Blocks without listfile entry will be discarded");
         }
         for (String fileName : listFile.getFiles()) {
@@ -411,9 +557,22 @@ public class JMpqEditor implements AutoCloseable {
         readFully(blockBuffer, fc);
         blockBuffer.rewind();
         blockTable = new BlockTable(blockBuffer);
+
+        if (hiBlockPos != 0) {
+            ByteBuffer hiBlockBuffer = ByteBuffer.allocate(blockSize * 2).order(ByteOrder.LITTLE_ENDIAN);
+            fc.position(headerOffset + hiBlockPos);
+            readFully(hiBlockBuffer, fc);
+            hiBlockBuffer.rewind();
+            blockTable.readHiBlockTable(hiBlockBuffer);
+        }
     }
 
     private void readHashTable() throws IOException {
+        if (hashSize == 0) {
+            // archive relies on the HET table
+            return;
+        }
+
         // read hash table
         ByteBuffer hashBuffer = ByteBuffer.allocate(hashSize * 16);
         fc.position(headerOffset + hashPos);
@@ -430,6 +589,87 @@ public class JMpqEditor implements AutoCloseable {
         hashTable.readFromBuffer(hashBuffer);
     }
 
+    /**
+     * Reads the HET and BET tables of format version 2 and newer archives.
+     * Damaged tables are ignored, in which case the classic hash and block
+     * tables are used.
+     */
+    private void readHetBetTables() throws IOException {
+        if (hetPos != 0 && betPos != 0 && !legacyCompatibility) {
+            try {
+                long hetTableSize = hetSize != 0 ? hetSize : getNextTablePos(hetPos) - hetPos;
+                long betTableSize = betSize != 0 ? betSize : getNextTablePos(betPos) - betPos;
+                hetTable = new HetTable(readExtTable(hetPos, hetTableSize, HetTable.SIGNATURE, KEY_HASH_TABLE));
+                betTable = new BetTable(readExtTable(betPos, betTableSize, BetTable.SIGNATURE, KEY_BLOCK_TABLE));
+            } catch (IOException | RuntimeException e) {
+                log.warn("The mpq's HET/BET tables are damaged and will be ignored.", e);
+                hetTable = null;
+                betTable = null;
+            }
+        }
+        if (hashTable == null && hetTable == null) {
+            throw new JMpqException("Archive has neither hash table nor HET table.");
+        }
+    }
+
+    /**
+     * Determines where the table following the table at the given position
+     * starts. Used for format version 2 archives whose headers do not store
+     * the HET and BET table sizes.
+     *
+     * @param tablePos position of a table
+     * @return the position of the next table, or the end of the archive
+     */
+    private long getNextTablePos(long tablePos) throws IOException {
+        long next = Math.min(archiveSize, fc.size() - headerOffset);
+        for (long pos : new long[]{hetPos, betPos, hashPos, blockPos, hiBlockPos}) {
+            if (pos > tablePos && pos < next) {
+                next = pos;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Reads an extended table (HET or BET) consisting of a signature, version
+     * and data size header followed by encrypted and optionally compressed
+     * table data.
+     *
+     * @param tablePos  the table position
+     * @param tableSize the stored table size including the header
+     * @param signature the expected table signature
+     * @param key       the encryption key
+     * @return the decrypted and decompressed table data
+     * @throws JMpqException if the table is damaged
+     */
+    private ByteBuffer readExtTable(long tablePos, long tableSize, int signature, int key) throws IOException {
+        if (tableSize < 12 || tableSize > Integer.MAX_VALUE || headerOffset + tablePos + tableSize > fc.size()) {
+            throw new JMpqException("Bad extended table size.");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) tableSize).order(ByteOrder.LITTLE_ENDIAN);
+        fc.position(headerOffset + tablePos);
+        readFully(buffer, fc);
+        buffer.rewind();
+
+        if (buffer.getInt() != signature) {
+            throw new JMpqException("Bad extended table signature.");
+        }
+        buffer.getInt(); // version
+        final int dataSize = buffer.getInt();
+
+        ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        new MPQEncryption(key, true).processSingle(data);
+        data.rewind();
+
+        if (dataSize > data.remaining()) {
+            // compressed table
+            byte[] compressed = new byte[data.remaining()];
+            data.get(compressed);
+            data = ByteBuffer.wrap(CompressionUtil.decompress(compressed, compressed.length, dataSize)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return data;
+    }
+
     private void readHeaderSize() throws IOException {
         // probe to sample file with
         ByteBuffer probe = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
@@ -446,6 +686,14 @@ public class JMpqEditor implements AutoCloseable {
         }
     }
 
+    /**
+     * @return the directory for scratch files, or null for the default temp
+     * directory if no archive was opened from a path yet
+     */
+    private static Path getScratchDir() {
+        return JMpqEditor.tempDir != null ? JMpqEditor.tempDir.toPath() : null;
+    }
+
     private void setupTempDir() throws JMpqException {
         try {
             Path path = Paths.get(System.getProperty("java.io.tmpdir") + "jmpq");
@@ -556,8 +804,8 @@ public class JMpqEditor implements AutoCloseable {
 
         // version 1 extension
         if (formatVersion >= 1) {
-            // TODO add high block table support
-            buffer.getLong();
+            // hi-block table holding the high 16 bits of block file pos
+            hiBlockPos = buffer.getLong();
 
             // high 16 bits of file pos
             hashPos |= (buffer.getShort() & 0xFFFFL) << 32;
@@ -569,37 +817,41 @@ public class JMpqEditor implements AutoCloseable {
             // 64 bit archive size
             archiveSize = buffer.getLong();
 
-            // TODO add support for BET and HET tables
-            buffer.getLong();
-            buffer.getLong();
+            betPos = buffer.getLong();
+            hetPos = buffer.getLong();
         }
 
         // version 3 extension
         if (formatVersion >= 3) {
-            // TODO add support for compression and checksums
-            buffer.getLong();
-            buffer.getLong();
-            buffer.getLong();
-            buffer.getLong();
-            buffer.getLong();
-
-            buffer.getInt();
-            final byte[] md5 = new byte[16];
-            buffer.get(md5);
-            buffer.get(md5);
-            buffer.get(md5);
-            buffer.get(md5);
-            buffer.get(md5);
-            buffer.get(md5);
+            // TODO add support for compressed hash and block tables
+            hashTableSize = buffer.getLong();
+            blockTableSize = buffer.getLong();
+            hiBlockTableSize = buffer.getLong();
+            hetSize = buffer.getLong();
+            betSize = buffer.getLong();
+
+            // checksums, validated by verifyIntegrity
+            rawChunkSize = buffer.getInt();
+            headerDigests = new byte[6][16];
+            for (byte[] md5 : headerDigests) {
+                buffer.get(md5);
+            }
         }
     }
 
     /**
      * Write header.
      *
-     * @param buffer the buffer
+     * @param buffer       the buffer
+     * @param hashTable    the hash table as written
+     * @param blockTable   the block table as written
+     * @param hiBlockTable the hi-block table as written, may be null
+     * @param hetTable     the HET table as written, may be null
+     * @param betTable     the BET table as written, may be null
      */
-    private void writeHeader(MappedByteBuffer buffer) {
+    private void writeHeader(ByteBuffer buffer, ByteBuffer hashTable, ByteBuffer blockTable, ByteBuffer hiBlockTable,
+                             ByteBuffer hetTable, ByteBuffer betTable) {
+        buffer.putInt(ARCHIVE_HEADER_MAGIC);
         buffer.putInt(newHeaderSize);
         buffer.putInt((int) newArchiveSize);
         buffer.putShort((short) newFormatVersion);
@@ -609,20 +861,74 @@ public class JMpqEditor implements AutoCloseable {
         buffer.putInt(newHashSize);
         buffer.putInt(newBlockSize);
 
-        // TODO add full write support for versions above 1
+        // version 1 extension
+        if (newFormatVersion >= 1) {
+            buffer.putLong(newHiBlockPos);
+            buffer.putShort((short) (newHashPos >>> 32));
+            buffer.putShort((short) (newBlockPos >>> 32));
+        }
+
+        // version 2 extension
+        if (newFormatVersion >= 2) {
+            buffer.putLong(newArchiveSize);
+            buffer.putLong(newBetPos);
+            buffer.putLong(newHetPos);
+        }
+
+        // version 3 extension
+        if (newFormatVersion >= 3) {
+            buffer.putLong(tableSize(hashTable));
+            buffer.putLong(tableSize(blockTable));
+            buffer.putLong(tableSize(hiBlockTable));
+            buffer.putLong(tableSize(hetTable));
+            buffer.putLong(tableSize(betTable));
+            // no raw chunk checksums
+            buffer.putInt(0);
+
+            buffer.put(md5(blockTable));
+            buffer.put(md5(hashTable));
+            buffer.put(md5(hiBlockTable));
+            buffer.put(md5(betTable));
+            buffer.put(md5(hetTable));
+            buffer.put(md5(buffer.duplicate().flip()));
+        }
+    }
+
+    private static long tableSize(ByteBuffer table) {
+        return table != null ? table.limit() : 0;
     }
 
     /**
-     * Calc new table size.
+     * Calculates the MD5 digest of the remaining content of a buffer.
+     *
+     * @param buffer the buffer, may be null
+     * @return the digest, all zero for a null buffer
      */
-    private void calcNewTableSize() {
-        int target = listFile.getFiles().size() + 2;
-        int current = 2;
-        while (current < target) {
-            current *= 2;
+    private static byte[] md5(ByteBuffer buffer) {
+        if (buffer == null) {
+            return new byte[16];
         }
-        newHashSize = current * 2;
-        newBlockSize = listFile.getFiles().size() + 2;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(buffer.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encrypts the data of an extended table in place. The extended table
+     * header itself is not encrypted.
+     *
+     * @param table the table buffer, positioned at its end
+     * @param key   the encryption key
+     */
+    private static void encryptExtTable(ByteBuffer table, int key) {
+        table.flip();
+        table.position(12);
+        new MPQEncryption(key, false).processSingle(table.slice());
+        table.rewind();
     }
 
     /**
@@ -657,7 +963,7 @@ public class JMpqEditor implements AutoCloseable {
             File temp = new File(dest.getAbsolutePath() + File.separator + "(listfile)");
             extractFile("(listfile)", temp);
         } else {
-            ArrayList<Block> blocks = blockTable.getAllVaildBlocks();
+            ArrayList<Block> blocks = getAllVaildBlocks();
             try {
                 int i = 0;
                 for (Block b : blocks) {
@@ -685,7 +991,7 @@ public class JMpqEditor implements AutoCloseable {
      * @throws JMpqException the j mpq exception
      */
     public int getTotalFileCount() throws JMpqException {
-        return blockTable.getAllVaildBlocks().size();
+        return getAllVaildBlocks().size();
     }
 
     /**
@@ -736,7 +1042,7 @@ public class JMpqEditor implements AutoCloseable {
      */
     public boolean hasFile(String name) {
         try {
-            hashTable.getBlockIndexOfFile(name);
+            getBlockIndexOfFile(name);
         } catch (IOException e) {
             return false;
         }
@@ -777,8 +1083,23 @@ public class JMpqEditor implements AutoCloseable {
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public MpqFile getMpqFile(String name) throws IOException {
-        int pos = hashTable.getBlockIndexOfFile(name);
-        Block b = blockTable.getBlockAtPos(pos);
+        AccessProfile recorder = accessRecorder;
+        if (recorder != null) {
+            recorder.record(name);
+        }
+        return readMpqFile(name);
+    }
+
+    /**
+     * Gets the mpq file without recording the access.
+     *
+     * @param name the name
+     * @return the mpq file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private MpqFile readMpqFile(String name) throws IOException {
+        int pos = getBlockIndexOfFile(name);
+        Block b = getBlockAtPos(pos);
 
         ByteBuffer buffer = ByteBuffer.allocate(b.getCompressedSize()).order(ByteOrder.LITTLE_ENDIAN);
         fc.position(headerOffset + b.getFilePos());
@@ -815,7 +1136,7 @@ public class JMpqEditor implements AutoCloseable {
      */
     public List<MpqFile> getMpqFilesByBlockTable() throws IOException {
         List<MpqFile> mpqFiles = new ArrayList<>();
-        ArrayList<Block> list = blockTable.getAllVaildBlocks();
+        ArrayList<Block> list = getAllVaildBlocks();
         for (Block block : list) {
             try {
                 MpqFile mpqFile = getMpqFileByBlock(block);
@@ -838,8 +1159,105 @@ public class JMpqEditor implements AutoCloseable {
         }
 
         if (listFile.containsFile(name)) {
-            listFile.removeFile(name);
-            filenameToData.remove(name);
+            stageDelete(name);
+            if (journal != null) {
+                journal.delete(name);
+            }
+        }
+    }
+
+    /**
+     * @param name the name of a file in the listfile
+     */
+    private void stageDelete(String name) {
+        listFile.removeFile(name);
+        filenameToData.remove(name);
+        String source = renamedFiles.remove(HashTable.calculateFileKey(name));
+        source = source != null ? source : name;
+        if (hasFile(source)) {
+            deletedFiles.add(source);
+        }
+        dirty = true;
+        editCount++;
+    }
+
+    /**
+     * Renames the specified file once you close the editor. The data of
+     * unencrypted files is kept as it is, only the tables change. Encrypted
+     * files use a key derived from their name, so they are extracted here and
+     * inserted again under the new name.
+     *
+     * @param name    of the file inside the mpq
+     * @param newName the new name of the file
+     * @throws IOException              if an encrypted file cannot be extracted
+     * @throws IllegalArgumentException if the file does not exist or the mpq already has the new name
+     */
+    public void renameFile(String name, String newName) throws IOException {
+        if (!canWrite) {
+            throw new NonWritableChannelException();
+        }
+        if (!listFile.containsFile(name)) {
+            throw new IllegalArgumentException("Archive does not contain file with name: " + name);
+        }
+        if (listFile.containsFile(newName)) {
+            throw new IllegalArgumentException("Archive already contains file with name: " + newName);
+        }
+        stageRename(name, newName);
+        if (journal != null) {
+            journal.rename(name, newName);
+        }
+    }
+
+    /**
+     * @param name    the current name of the file
+     * @param newName the new name of the file
+     * @throws IOException if an encrypted file cannot be extracted
+     */
+    private void stageRename(String name, String newName) throws IOException {
+        FileSource staged = filenameToData.remove(name);
+        String source = renamedFiles.remove(HashTable.calculateFileKey(name));
+        source = source != null ? source : name;
+        if (staged != null) {
+            filenameToData.put(newName, staged);
+        } else if (getBlockAtPos(getBlockIndexOfFile(source)).hasFlag(ENCRYPTED)) {
+            filenameToData.put(newName, FileSource.of(readMpqFile(source).extractToBytes()));
+            spillStaged();
+            deletedFiles.add(source);
+        } else {
+            renamedFiles.put(HashTable.calculateFileKey(newName), source);
+        }
+        listFile.removeFile(name);
+        listFile.addFile(newName);
+        dirty = true;
+        editCount++;
+    }
+
+    /**
+     * Writes the edits staged since the last checkpoint to a journal next to
+     * the archive. Inserted content is copied into the journal, so streams
+     * are read here instead of when the archive is written. If the process
+     * ends before the editor is closed, the next editor opening the archive
+     * stages the checkpointed edits again and discards later ones. The
+     * journal is deleted once the archive is written by
+     * {@link #close(boolean, boolean, RecompressOptions)}.
+     * <p>
+     * A checkpoint costs about as much as writing the new content once, no
+     * matter how large the archive is.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    public void checkpoint() throws IOException {
+        if (!canWrite) {
+            throw new NonWritableChannelException();
+        }
+        if (journal == null) {
+            throw new JMpqException("Only archive files can be journaled");
+        }
+        for (EditJournal.Edit edit : journal.commit()) {
+            // later reads use the journaled copy of the content
+            if (edit.isInsert() && filenameToData.get(edit.getName()) == edit.getStaged()) {
+                filenameToData.put(edit.getName(), edit.getSource());
+            }
         }
     }
 
@@ -852,15 +1270,7 @@ public class JMpqEditor implements AutoCloseable {
      * @throws IllegalArgumentException when the mpq has filename and not override
      */
     public void insertByteArray(String name, byte[] input, boolean override) {
-        if (!canWrite) {
-            throw new NonWritableChannelException();
-        }
-        if ((!override) && listFile.containsFile(name)) {
-            throw new IllegalArgumentException("Archive already contains file with name: " + name);
-        }
-
-        listFile.addFile(name);
-        filenameToData.put(name, new Either(input));
+        insert(name, FileSource.of(input), override);
     }
 
     /**
@@ -893,20 +1303,123 @@ public class JMpqEditor implements AutoCloseable {
      * @throws JMpqException if file is not found or access errors occur
      */
     public void insertFile(String name, File file, boolean override) throws IOException {
+        insertFile(name, file.toPath(), override);
+    }
+
+    /**
+     * Inserts the specified file into the mpq once you close the editor. The
+     * file is read sector by sector when the mpq is written, so it must not
+     * be changed until then.
+     *
+     * @param name     of the file inside the mpq
+     * @param file     the file
+     * @param override whether to override an existing file with the same name
+     * @throws IllegalArgumentException when the mpq has filename and not override
+     */
+    public void insertFile(String name, Path file, boolean override) {
+        log.info("insert file: " + name);
+        insert(name, FileSource.of(file), override); // Store path, not data
+    }
+
+    /**
+     * Inserts the content of the specified stream into the mpq once you close
+     * the editor. The stream is read sector by sector when the mpq is
+     * written and closed afterwards. It can be read only once, so after a
+     * cancelled build it has to be inserted again.
+     *
+     * @param name     of the file inside the mpq
+     * @param input    the stream
+     * @param length   the number of bytes to read from the stream
+     * @param override whether to override an existing file with the same name
+     * @throws IllegalArgumentException when the mpq has filename and not override
+     */
+    public void insertStream(String name, InputStream input, long length, boolean override) {
+        insert(name, FileSource.of(input, length), override);
+    }
+
+    /**
+     * Inserts the content of the specified channel into the mpq once you close
+     * the editor. The channel is read sector by sector when the mpq is
+     * written and closed afterwards. It can be read only once, so after a
+     * cancelled build it has to be inserted again.
+     *
+     * @param name     of the file inside the mpq
+     * @param input    the channel
+     * @param length   the number of bytes to read from the channel
+     * @param override whether to override an existing file with the same name
+     * @throws IllegalArgumentException when the mpq has filename and not override
+     */
+    public void insertChannel(String name, ReadableByteChannel input, long length, boolean override) {
+        insert(name, FileSource.of(input, length), override);
+    }
+
+    private void insert(String name, FileSource source, boolean override) {
         if (!canWrite) {
             throw new NonWritableChannelException();
         }
-        log.info("insert file: " + name);
         if ((!override) && listFile.containsFile(name)) {
             throw new IllegalArgumentException("Archive already contains file with name: " + name);
         }
 
+        stageInsert(name, source);
+        if (journal != null) {
+            // the staged source follows the content when it is spilled
+            journal.insert(name, filenameToData.get(name));
+        }
+    }
+
+    /**
+     * @param name   the file name
+     * @param source the file content
+     */
+    private void stageInsert(String name, FileSource source) {
         listFile.addFile(name);
-        filenameToData.put(name, new Either(file.toPath())); // Store path, not data
+        filenameToData.put(name, source);
+        spillStaged();
+        String renamed = renamedFiles.remove(HashTable.calculateFileKey(name));
+        if (renamed != null) {
+            deletedFiles.add(renamed);
+        }
+        dirty = true;
+        editCount++;
+    }
+
+    /**
+     * Spills staged content above the staging memory limit to disk. Content
+     * which cannot be spilled stays in memory.
+     */
+    private void spillStaged() {
+        try {
+            filenameToData.spill();
+        } catch (IOException e) {
+            log.warn("Cannot spill staged files to disk, keeping them in memory", e);
+        }
+    }
+
+    /**
+     * Sets how many bytes of inserted content are held in memory until the
+     * archive is written. Above the limit the content inserted first is moved
+     * to a scratch file in the temp directory. Files inserted by path and
+     * streams are read when the archive is written and do not count. There is
+     * no limit by default.
+     *
+     * @param limit the limit in bytes
+     */
+    public void setStagingMemoryLimit(long limit) {
+        filenameToData.setMemoryLimit(limit);
+        spillStaged();
+    }
+
+    /**
+     * @return the bytes of inserted content currently held in memory
+     */
+    public long getStagedMemorySize() {
+        return filenameToData.getMemorySize();
     }
 
     public void closeReadOnly() throws IOException {
         fc.close();
+        filenameToData.close();
     }
 
     public void close() throws IOException {
@@ -926,208 +1439,1332 @@ public class JMpqEditor implements AutoCloseable {
         // only rebuild if allowed
         if (!canWrite || !fc.isOpen()) {
             fc.close();
+            filenameToData.close();
             log.debug("closed readonly mpq.");
             return;
         }
+        writeArchive(buildListfile, options);
+        filenameToData.close();
+        if (journal != null) {
+            // the journaled edits are part of the archive now
+            journal.delete();
+        }
+    }
 
-        long t = System.nanoTime();
-        log.debug("Building mpq");
-        if (listFile == null) {
+    /**
+     * Plans a full rebuild with the current files, without writing anything.
+     * The plan can be inspected to estimate the build and then be executed
+     * by {@link #close(RebuildPlan)}.
+     *
+     * @param buildListfile whether or not to add a (listfile) to this mpq
+     * @param options       the compression options
+     * @return the plan
+     * @throws IOException if the size of an inserted file cannot be determined
+     */
+    public RebuildPlan planRebuild(boolean buildListfile, RecompressOptions options) throws IOException {
+        return createPlan(buildListfile, options);
+    }
+
+    /**
+     * Rebuilds the archive as planned and closes it. The archive is always
+     * rebuilt, even if it is unmodified or would otherwise be appended to.
+     *
+     * @param plan the plan made by {@link #planRebuild(boolean, RecompressOptions)}
+     * @throws IllegalStateException if the plan was made by another editor or files were changed since
+     * @throws IOException           if reading a file or writing fails
+     */
+    public void close(RebuildPlan plan) throws IOException {
+        if (!plan.isCurrent(this, editCount)) {
+            throw new IllegalStateException("The rebuild plan is out of date");
+        }
+        if (!canWrite || !fc.isOpen()) {
             fc.close();
+            filenameToData.close();
+            log.debug("closed readonly mpq.");
             return;
         }
-        File temp = File.createTempFile("jmpq", "temp", JMpqEditor.tempDir);
-        temp.deleteOnExit();
-        try (FileChannel writeChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
-
-            ByteBuffer headerReader = ByteBuffer.allocate((int) ((keepHeaderOffset ? headerOffset : 0) + 4)).order(ByteOrder.LITTLE_ENDIAN);
-            fc.position((keepHeaderOffset ? 0 : headerOffset));
-            readFully(headerReader, fc);
-            headerReader.rewind();
-            writeChannel.write(headerReader);
-
-            newFormatVersion = formatVersion;
-            switch (newFormatVersion) {
-                case 0:
-                    newHeaderSize = 32;
-                    break;
-                case 1:
-                    newHeaderSize = 44;
-                    break;
-                case 2:
-                case 3:
-                    newHeaderSize = 208;
-                    break;
-            }
-            newSectorSizeShift = options.recompress ? Math.min(options.newSectorSizeShift, 15) : sectorSizeShift;
-            newDiscBlockSize = options.recompress ? 512 * (1 << newSectorSizeShift) : discBlockSize;
-            calcNewTableSize();
-
-            ArrayList<Block> newBlocks = new ArrayList<>();
-            ArrayList<String> newFiles = new ArrayList<>();
-            ArrayList<String> existingFiles = new ArrayList<>(listFile.getFiles());
+        rebuildArchive(plan);
+        filenameToData.close();
+        if (journal != null) {
+            journal.delete();
+        }
+    }
 
-            sortListfileEntries(existingFiles);
+    /**
+     * Writes the staged edits to the archive and closes it.
+     *
+     * @param buildListfile whether or not to add a (listfile) to this mpq
+     * @param options       the compression options
+     * @throws IOException if reading a file or writing fails
+     */
+    private void writeArchive(boolean buildListfile, RecompressOptions options) throws IOException {
 
-            log.debug("Sorted blocks");
-            if (attributes != null) {
-                attributes.setNames(existingFiles);
-            }
-            long currentPos = (keepHeaderOffset ? headerOffset : 0) + headerSize;
+        // nothing to write if unmodified, unless the rebuild itself changes the archive
+        if (!dirty && !options.recompress && (keepHeaderOffset || headerOffset == 0) && buildListfile == hasFile("(listfile)")) {
+            fc.close();
+            log.debug("closed unmodified mpq.");
+            return;
+        }
 
-            for (String fileName : filenameToData) {
-                existingFiles.remove(fileName);
+        long t = System.nanoTime();
+        if (listFile == null) {
+            fc.close();
+            return;
+        }
+        if (appendInPlace && !options.recompress && (keepHeaderOffset || headerOffset == 0)) {
+            // commits in place can only be cancelled before they write
+            checkCancelled();
+            if (rewriteTablesInPlace(buildListfile, options)) {
+                log.debug("Rewrote tables in place");
+            } else {
+                log.debug("Appending to mpq");
+                appendInPlace(buildListfile, options);
             }
+            fc.close();
+            t = System.nanoTime() - t;
+            log.debug("Append complete. Took: " + (t / 1000000) + "ms");
+            return;
+        }
+        rebuildArchive(createPlan(buildListfile, options));
+    }
 
-            for (String existingName : existingFiles) {
-                if (options.recompress && !existingName.endsWith(".wav")) {
-                    filenameToData.put(existingName, new Either(extractFileAsBytes(existingName)));
-                } else {
-                    newFiles.add(existingName);
-                    int pos = hashTable.getBlockIndexOfFile(existingName);
-                    Block b = blockTable.getBlockAtPos(pos);
-                    ByteBuffer buf = ByteBuffer.allocate(b.getCompressedSize()).order(ByteOrder.LITTLE_ENDIAN);
-                    fc.position(headerOffset + b.getFilePos());
-                    readFully(buf, fc);
-                    buf.rewind();
-                    MpqFile f = new MpqFile(buf, b, discBlockSize, existingName);
-                    MappedByteBuffer fileWriter = writeChannel.map(MapMode.READ_WRITE, currentPos, b.getCompressedSize());
-                    Block newBlock = new Block(currentPos - (keepHeaderOffset ? headerOffset : 0), 0, 0, b.getFlags());
-                    newBlocks.add(newBlock);
-                    f.writeFileAndBlock(newBlock, fileWriter);
-                    currentPos += b.getCompressedSize();
+    /**
+     * Rebuilds the archive as planned and closes it.
+     *
+     * @param plan the plan
+     * @throws IOException if reading a file or writing fails
+     */
+    private void rebuildArchive(RebuildPlan plan) throws IOException {
+        long t = System.nanoTime();
+        log.debug("Building mpq");
+        if (mpqPath == null) {
+            // byte array archives are rebuilt in memory
+            SeekableInMemoryByteChannel rebuilt = new SeekableInMemoryByteChannel();
+            try {
+                rebuild(rebuilt, plan);
+            } catch (IOException | RuntimeException e) {
+                discardRecompressedFiles(plan);
+                throw e;
+            }
+            rebuilt.close();
+            fc.close();
+            fc = rebuilt;
+            t = System.nanoTime() - t;
+            log.debug("Rebuild complete. Took: " + (t / 1000000) + "ms");
+            return;
+        }
+        // path based archives are rebuilt next to the archive and replaced by a move,
+        // a symbolic link is kept and the file it points to is replaced
+        final Path target = mpqPath.toRealPath();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+            copyFileAttributes(target, temp);
+        } catch (IOException e) {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+                temp = null;
+            }
+            log.debug("Cannot create temp file next to the archive, copying the rebuilt archive back instead", e);
+        }
+        final boolean replaceByMove = temp != null;
+        if (!replaceByMove) {
+            File tempFile = File.createTempFile("jmpq", "temp", JMpqEditor.tempDir);
+            tempFile.deleteOnExit();
+            temp = tempFile.toPath();
+        }
+        try (FileChannel writeChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            long currentPos = rebuild(writeChannel, plan);
+
+            if (replaceByMove) {
+                writeChannel.force(true);
+            } else {
+                // copy the rebuilt archive back over the archive
+                fc.position(0);
+                for (long copied = 0; copied < currentPos + 1; ) {
+                    copied += writeChannel.transferTo(copied, currentPos + 1 - copied, fc);
                 }
+                fc.truncate(currentPos + 1);
+
+                fc.close();
             }
-            log.debug("Added existing files");
-            for (String newFileName : filenameToData) {
-                Either either = filenameToData.get(newFileName);
-                byte[] fileData = either.data;
-                if (either.path != null) {
-                    fileData = Files.readAllBytes(either.path);
+        } catch (IOException | RuntimeException e) {
+            discardRecompressedFiles(plan);
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (replaceByMove) {
+            fc.close();
+            replaceArchive(temp, target);
+        }
+
+        t = System.nanoTime() - t;
+        log.debug("Rebuild complete. Took: " + (t / 1000000) + "ms");
+    }
+
+    /**
+     * Rebuilds the archive into the specified channel.
+     *
+     * @param writeChannel the empty channel to write to
+     * @param plan         the plan
+     * @return the file position after the tables
+     * @throws IOException if reading a file or writing fails
+     */
+    private long rebuild(SeekableByteChannel writeChannel, RebuildPlan plan) throws IOException {
+        RecompressOptions options = plan.getOptions();
+        ByteBuffer headerReader = ByteBuffer.allocate((int) ((keepHeaderOffset ? headerOffset : 0) + 4)).order(ByteOrder.LITTLE_ENDIAN);
+        fc.position((keepHeaderOffset ? 0 : headerOffset));
+        readFully(headerReader, fc);
+        headerReader.rewind();
+        ArchiveWriter writer = new ArchiveWriter(writeChannel, 0);
+        writer.write(headerReader, 0);
+
+        prepareRebuild(options);
+
+        ArrayList<Block> newBlocks = new ArrayList<>();
+        ArrayList<String> newFiles = new ArrayList<>();
+        if (attributes != null) {
+            attributes.setNames(new ArrayList<>(plan.getExistingFiles()));
+        }
+        long currentPos = (keepHeaderOffset ? headerOffset : 0) + newHeaderSize;
+
+        extractRecompressedFiles(plan);
+        startProgress(plan.getFiles(), plan.getCopiedBlocks(), true);
+        // existing files are copied and new files streamed sector by sector in layout order
+        currentPos = writeFiles(writer, currentPos, keepHeaderOffset ? headerOffset : 0, plan.getFiles(), plan.getCopiedBlocks(),
+            newBlocks, newFiles, options);
+        log.debug("Added files");
+        startTables();
+        if (plan.isBuildListfile() && !listFile.getFiles().isEmpty()) {
+            // Add listfile
+            currentPos = writeListfile(writer, currentPos, keepHeaderOffset ? headerOffset : 0, newBlocks, newFiles, options);
+            log.debug("Added listfile");
+        }
+        // if (attributes != null) {
+        // newFiles.add("(attributes)");
+        // // Only generate attributes file when there has been one before
+        // AttributesFile attributesFile = new AttributesFile(newFiles.size());
+        // // Generate new values
+        // long time = (new Date().getTime() + 11644473600000L) * 10000L;
+        // for (int i = 0; i < newFiles.size() - 1; i++) {
+        // String name = newFiles.get(i);
+        // int entry = attributes.getEntry(name);
+        // if (newFileMap.containsKey(name)){
+        // // new file
+        // attributesFile.setEntry(i, getCrc32(newFileMap.get(name)), time);
+        // }else if (entry >= 0) {
+        // // has timestamp
+        // attributesFile.setEntry(i, getCrc32(name),
+        // attributes.getTimestamps()[entry]);
+        // } else {
+        // // doesnt have timestamp
+        // attributesFile.setEntry(i, getCrc32(name), time);
+        // }
+        // }
+        // // newfiles don't contain the attributes file yet, hence -1
+        // System.out.println("added attributes");
+        // byte[] attrArr = attributesFile.buildFile();
+        // fileWriter = writeChannel.map(MapMode.READ_WRITE, currentPos,
+        // attrArr.length);
+        // newBlock = new Block(currentPos - headerOffset, 0, 0, EXISTS |
+        // COMPRESSED | ENCRYPTED | ADJUSTED_ENCRYPTED);
+        // newBlocks.add(newBlock);
+        // MpqFile.writeFileAndBlock(attrArr, newBlock, fileWriter,
+        // newDiscBlockSize, "(attributes)");
+        // currentPos += newBlock.getCompressedSize();
+        // }
+
+        final long archiveStart = keepHeaderOffset ? headerOffset : 0;
+        currentPos = writeTablesAndHeader(writer, currentPos, archiveStart, newBlocks, newFiles);
+        // the archive size includes one byte past the tables
+        writer.write(ByteBuffer.allocate(1), currentPos);
+        writer.flush();
+        finishProgress();
+        return currentPos;
+    }
+
+    /**
+     * Writes the rebuilt archive to the specified channel and closes the
+     * editor. The archive itself is left unchanged.
+     * <p>
+     * The archive is written strictly sequentially, so any channel such as a
+     * network connection can be used. Existing files are copied from the
+     * archive when they are written. New files and the listfile are
+     * compressed first, because the header in front of them depends on their
+     * compressed sizes. New files are held in memory up to the staging memory
+     * limit and in a scratch file in the temp directory above it. The channel
+     * is not closed.
+     *
+     * @param target          the channel to write the archive to
+     * @param buildListfile   whether or not to add a (listfile) to this mpq
+     * @param buildAttributes whether or not to add a (attributes) file to this mpq
+     * @param options         the compression options
+     * @throws IOException if reading a file or writing fails
+     */
+    public void close(WritableByteChannel target, boolean buildListfile, boolean buildAttributes, RecompressOptions options) throws IOException {
+        try (ScratchChannel staged = new ScratchChannel(getScratchDir(), filenameToData.getMemoryLimit())) {
+            long t = System.nanoTime();
+            RebuildPlan plan = createPlan(buildListfile, options);
+            final long archiveStart = keepHeaderOffset ? headerOffset : 0;
+
+            ArrayList<Block> newBlocks = new ArrayList<>();
+            ArrayList<String> newFiles = new ArrayList<>();
+            extractRecompressedFiles(plan);
+            List<String> order = plan.getFiles();
+            Map<String, Block> copiedBlocks = plan.getCopiedBlocks();
+            startProgress(order, copiedBlocks, true);
+
+            // new files are compressed first, their data does not depend on their position
+            ArchiveWriter stagedWriter = new ArchiveWriter(staged, 0);
+            ArrayList<Block> stagedBlocks = new ArrayList<>();
+            ArrayList<String> stagedFiles = new ArrayList<>();
+            ArrayList<String> newNames = new ArrayList<>(order);
+            newNames.removeAll(copiedBlocks.keySet());
+            writeFiles(stagedWriter, 0, 0, newNames, Collections.emptyMap(), stagedBlocks, stagedFiles, options);
+            progress.setCurrentFile(null);
+            stagedWriter.flush();
+
+            // lay out all files, their sizes are known now
+            long currentPos = archiveStart + newHeaderSize;
+            Map<Long, Block> shared = new HashMap<>();
+            IdentityHashMap<Block, Block> placed = new IdentityHashMap<>();
+            // source of each written block, the old block of a copied file or the staged block of a new file
+            IdentityHashMap<Block, Block> sources = new IdentityHashMap<>();
+            IdentityHashMap<Block, String> sourceNames = new IdentityHashMap<>();
+            int stagedIndex = 0;
+            for (String name : order) {
+                newFiles.add(name);
+                Block source = copiedBlocks.containsKey(name) ? copiedBlocks.get(name) : stagedBlocks.get(stagedIndex++);
+                Block newBlock = copiedBlocks.containsKey(name) ? getSharedCopy(shared, source) : placed.get(source);
+                if (newBlock == null) {
+                    newBlock = getCopyBlock(source, currentPos - archiveStart);
+                    currentPos += Integer.toUnsignedLong(newBlock.getCompressedSize());
+                    if (copiedBlocks.containsKey(name)) {
+                        addSharedCopy(shared, source, newBlock);
+                    } else {
+                        placed.put(source, newBlock);
+                    }
+                    sources.put(newBlock, source);
+                    sourceNames.put(newBlock, name);
                 }
-                newFiles.add(newFileName);
-                MappedByteBuffer fileWriter = writeChannel.map(MapMode.READ_WRITE, currentPos, fileData.length * 2L);
-                Block newBlock = new Block(currentPos - (keepHeaderOffset ? headerOffset : 0), 0, 0, 0);
                 newBlocks.add(newBlock);
-                MpqFile.writeFileAndBlock(fileData, newBlock, fileWriter, newDiscBlockSize, options);
-                currentPos += newBlock.getCompressedSize();
-                log.debug("Added file " + newFileName);
             }
-            log.debug("Added new files");
+
+            // listfile and tables follow in memory
+            startTables();
+            SeekableInMemoryByteChannel tail = new SeekableInMemoryByteChannel();
+            ArchiveWriter writer = new ArchiveWriter(tail, currentPos);
             if (buildListfile && !listFile.getFiles().isEmpty()) {
-                // Add listfile
-                newFiles.add("(listfile)");
-                byte[] listfileArr = listFile.asByteArray();
-                MappedByteBuffer fileWriter = writeChannel.map(MapMode.READ_WRITE, currentPos, listfileArr.length * 2L);
-                Block newBlock = new Block(currentPos - (keepHeaderOffset ? headerOffset : 0), 0, 0, EXISTS | COMPRESSED | ENCRYPTED | ADJUSTED_ENCRYPTED);
-                newBlocks.add(newBlock);
-                MpqFile.writeFileAndBlock(listfileArr, newBlock, fileWriter, newDiscBlockSize, "(listfile)", options);
-                currentPos += newBlock.getCompressedSize();
-                log.debug("Added listfile");
+                currentPos = writeListfile(writer, currentPos, archiveStart, newBlocks, newFiles, options);
+            }
+            ByteBuffer headerBuffer = writeTables(writer, currentPos, archiveStart, newBlocks, newFiles);
+            writer.flush();
+
+            if (archiveStart > 0) {
+                ByteBuffer userData = ByteBuffer.allocate((int) archiveStart);
+                fc.position(0);
+                readFully(userData, fc);
+                userData.flip();
+                writeFully(userData, target);
             }
-            // if (attributes != null) {
-            // newFiles.add("(attributes)");
-            // // Only generate attributes file when there has been one before
-            // AttributesFile attributesFile = new AttributesFile(newFiles.size());
-            // // Generate new values
-            // long time = (new Date().getTime() + 11644473600000L) * 10000L;
-            // for (int i = 0; i < newFiles.size() - 1; i++) {
-            // String name = newFiles.get(i);
-            // int entry = attributes.getEntry(name);
-            // if (newFileMap.containsKey(name)){
-            // // new file
-            // attributesFile.setEntry(i, getCrc32(newFileMap.get(name)), time);
-            // }else if (entry >= 0) {
-            // // has timestamp
-            // attributesFile.setEntry(i, getCrc32(name),
-            // attributes.getTimestamps()[entry]);
-            // } else {
-            // // doesnt have timestamp
-            // attributesFile.setEntry(i, getCrc32(name), time);
-            // }
-            // }
-            // // newfiles don't contain the attributes file yet, hence -1
-            // System.out.println("added attributes");
-            // byte[] attrArr = attributesFile.buildFile();
-            // fileWriter = writeChannel.map(MapMode.READ_WRITE, currentPos,
-            // attrArr.length);
-            // newBlock = new Block(currentPos - headerOffset, 0, 0, EXISTS |
-            // COMPRESSED | ENCRYPTED | ADJUSTED_ENCRYPTED);
-            // newBlocks.add(newBlock);
-            // MpqFile.writeFileAndBlock(attrArr, newBlock, fileWriter,
-            // newDiscBlockSize, "(attributes)");
-            // currentPos += newBlock.getCompressedSize();
-            // }
-
-            newBlockSize = newBlocks.size();
-
-            newHashPos = currentPos - (keepHeaderOffset ? headerOffset : 0);
-            newBlockPos = newHashPos + newHashSize * 16L;
-
-            // generate new hash table
-            final int hashSize = newHashSize;
-            HashTable hashTable = new HashTable(hashSize);
-            int blockIndex = 0;
-            for (String file : newFiles) {
-                hashTable.setFileBlockIndex(file, HashTable.DEFAULT_LOCALE, blockIndex++);
+            writeFully(headerBuffer, target);
+            Set<Block> written = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (int i = 0; i < order.size(); i++) {
+                Block newBlock = newBlocks.get(i);
+                boolean copied = copiedBlocks.containsKey(order.get(i));
+                if (copied) {
+                    startFile(RebuildProgress.Phase.COPY_EXISTING, order.get(i));
+                } else {
+                    checkCancelled();
+                }
+                if (sources.containsKey(newBlock) && written.add(newBlock)) {
+                    Block source = sources.get(newBlock);
+                    String name = sourceNames.get(newBlock);
+                    if (!copiedBlocks.containsKey(name)) {
+                        ArchiveWriter.transfer(staged, source.getFilePos(), Integer.toUnsignedLong(source.getCompressedSize()), target);
+                    } else if (MpqFile.needsRekey(source, newBlock.getFilePos())) {
+                        writeFully(rekeyExistingFile(getSourceName(name), source, newBlock.getFilePos()), target);
+                    } else {
+                        ArchiveWriter.transfer(fc, headerOffset + source.getFilePos(), Integer.toUnsignedLong(source.getCompressedSize()), target);
+                    }
+                }
+                if (copied) {
+                    finishFile(Integer.toUnsignedLong(newBlock.getCompressedSize()));
+                }
             }
+            startTables();
+            writeFully(ByteBuffer.wrap(tail.array(), 0, (int) tail.size()), target);
+            // the archive size includes one byte past the tables
+            writeFully(ByteBuffer.allocate(1), target);
+            finishProgress();
+
+            t = System.nanoTime() - t;
+            log.debug("Streamed mpq. Took: " + (t / 1000000) + "ms");
+        } finally {
+            fc.close();
+            filenameToData.close();
+        }
+    }
 
-            // prepare hashtable for writing
-            final ByteBuffer hashTableBuffer = ByteBuffer.allocate(hashSize * 16);
-            hashTable.writeToBuffer(hashTableBuffer);
-            hashTableBuffer.flip();
+    /**
+     * Writes the rebuilt archive to the specified stream and closes the
+     * editor. The archive itself is left unchanged and the stream is not
+     * closed.
+     *
+     * @param target          the stream to write the archive to
+     * @param buildListfile   whether or not to add a (listfile) to this mpq
+     * @param buildAttributes whether or not to add a (attributes) file to this mpq
+     * @param options         the compression options
+     * @throws IOException if reading a file or writing fails
+     * @see #close(WritableByteChannel, boolean, boolean, RecompressOptions)
+     */
+    public void close(OutputStream target, boolean buildListfile, boolean buildAttributes, RecompressOptions options) throws IOException {
+        close(Channels.newChannel(target), buildListfile, buildAttributes, options);
+        target.flush();
+    }
 
-            // encrypt hash table
-            final MPQEncryption encrypt = new MPQEncryption(KEY_HASH_TABLE, false);
-            encrypt.processSingle(hashTableBuffer);
-            hashTableBuffer.flip();
+    /**
+     * Sets up the format of the rebuilt archive.
+     *
+     * @param options the compression options
+     */
+    private void prepareRebuild(RecompressOptions options) {
+        newFormatVersion = formatVersion;
+        newHeaderSize = getHeaderSize(newFormatVersion);
+        newSectorSizeShift = options.recompress ? Math.min(options.newSectorSizeShift, 15) : sectorSizeShift;
+        newDiscBlockSize = options.recompress ? 512 * (1 << newSectorSizeShift) : discBlockSize;
+        newHashSize = RebuildPlan.getHashTableSize(listFile.getFiles().size());
+        newBlockSize = listFile.getFiles().size() + 2;
+    }
 
-            // write out hash table
-            writeChannel.position(currentPos);
-            writeFully(hashTableBuffer, writeChannel);
-            currentPos = writeChannel.position();
+    /**
+     * Plans a rebuild. Every file name is resolved once, existing files
+     * which the compression policy recompresses are planned as new files.
+     * The layout is projected with new files at their largest stored size,
+     * and the tables are built for it to get their exact size.
+     *
+     * @param buildListfile whether or not to add a (listfile) to this mpq
+     * @param options       the compression options
+     * @return the plan
+     * @throws IOException if the size of an inserted file cannot be determined
+     */
+    private RebuildPlan createPlan(boolean buildListfile, RecompressOptions options) throws IOException {
+        prepareRebuild(options);
+        ArrayList<String> existingFiles = new ArrayList<>(listFile.getFiles());
+        sortListfileEntries(existingFiles);
+        ArrayList<String> remainingFiles = new ArrayList<>(existingFiles);
+        remainingFiles.removeIf(filenameToData::contains);
+        ArrayList<String> copiedFiles = new ArrayList<>();
+        ArrayList<String> recompressedFiles = new ArrayList<>();
+        Map<String, Block> copiedBlocks = new HashMap<>();
+        for (String existingName : remainingFiles) {
+            Block b = getExistingBlock(existingName);
+            if (options.recompress && options.policy.recompressExisting(existingName, Integer.toUnsignedLong(b.getNormalSize()))) {
+                recompressedFiles.add(existingName);
+            } else {
+                copiedFiles.add(existingName);
+                copiedBlocks.put(existingName, b);
+            }
+        }
+        ArrayList<String> order = getLayoutOrder(copiedFiles, recompressedFiles);
+
+        final long archiveStart = keepHeaderOffset ? headerOffset : 0;
+        long currentPos = archiveStart + newHeaderSize;
+        long copyBytes = 0;
+        long compressBytes = 0;
+        ArrayList<Block> blocks = new ArrayList<>();
+        ArrayList<String> files = new ArrayList<>(order);
+        Map<Long, Block> shared = new HashMap<>();
+        Map<String, Long> recompressedSizes = new HashMap<>();
+        for (String name : recompressedFiles) {
+            recompressedSizes.put(name, Integer.toUnsignedLong(getExistingBlock(name).getNormalSize()));
+        }
+        for (String name : order) {
+            Block b = copiedBlocks.get(name);
+            Block newBlock = b != null ? getSharedCopy(shared, b) : null;
+            if (b == null) {
+                long size = recompressedSizes.containsKey(name) ? recompressedSizes.get(name) : filenameToData.get(name).size();
+                long maxStored = MpqFile.getMaxStoredSize(size, newDiscBlockSize, options);
+                // the sizes of the block do not affect the tables, the estimate keeps them as long
+                newBlock = new Block(currentPos - archiveStart, (int) maxStored, (int) size, 0);
+                currentPos += maxStored;
+                compressBytes += size;
+            } else if (newBlock == null) {
+                newBlock = getCopyBlock(b, currentPos - archiveStart);
+                addSharedCopy(shared, b, newBlock);
+                currentPos += Integer.toUnsignedLong(newBlock.getCompressedSize());
+                copyBytes += Integer.toUnsignedLong(b.getCompressedSize());
+            }
+            blocks.add(newBlock);
+        }
+        if (buildListfile && !listFile.getFiles().isEmpty()) {
+            long size = listFile.asByteArray().length;
+            long maxStored = MpqFile.getMaxStoredSize(size, newDiscBlockSize, options);
+            files.add("(listfile)");
+            blocks.add(new Block(currentPos - archiveStart, (int) maxStored, (int) size, 0));
+            currentPos += maxStored;
+            compressBytes += size;
+        }
+        // the tables of the projected layout are only measured, the projection may exceed what the build needs
+        writeTables(new ArchiveWriter(new SeekableInMemoryByteChannel(), currentPos), currentPos, archiveStart, blocks, files, false);
+        return new RebuildPlan(this, editCount, buildListfile, options, existingFiles, order, copiedBlocks, recompressedFiles,
+            newHashSize, newBlockSize, copyBytes, compressBytes, archiveStart + newArchiveSize);
+    }
 
-            // write out block table
-            MappedByteBuffer blocktableWriter = writeChannel.map(MapMode.READ_WRITE, currentPos, newBlockSize * 16L);
-            blocktableWriter.order(ByteOrder.LITTLE_ENDIAN);
-            BlockTable.writeNewBlocktable(newBlocks, newBlockSize, blocktableWriter);
-            currentPos += newBlockSize * 16L;
+    /**
+     * Extracts the existing files which the plan recompresses and adds them
+     * to the files to insert.
+     *
+     * @param plan the plan
+     * @throws IOException if a file cannot be extracted
+     */
+    private void extractRecompressedFiles(RebuildPlan plan) throws IOException {
+        for (String existingName : plan.getRecompressedFiles()) {
+            checkCancelled();
+            filenameToData.put(existingName, FileSource.of(readMpqFile(getSourceName(existingName)).extractToBytes()));
+            spillStaged();
+        }
+    }
 
-            newArchiveSize = currentPos + 1 - (keepHeaderOffset ? headerOffset : 0);
+    /**
+     * Removes the files extracted by {@link #extractRecompressedFiles(RebuildPlan)}
+     * after a failed or cancelled build, so they are not taken for inserts.
+     *
+     * @param plan the plan
+     */
+    private void discardRecompressedFiles(RebuildPlan plan) {
+        for (String existingName : plan.getRecompressedFiles()) {
+            filenameToData.remove(existingName);
+        }
+    }
 
-            MappedByteBuffer headerWriter = writeChannel.map(MapMode.READ_WRITE, (keepHeaderOffset ? headerOffset : 0L) + 4L, headerSize + 4L);
-            headerWriter.order(ByteOrder.LITTLE_ENDIAN);
-            writeHeader(headerWriter);
+    /**
+     * Gets the order in which the files are written: the copied files in
+     * archive order followed by the inserted files in insertion order and the
+     * recompressed files in archive order. With a layout profile the profiled
+     * files come first, in profile order.
+     *
+     * @param copiedFiles       the copied files in archive order
+     * @param recompressedFiles the recompressed files in archive order
+     * @return the names of all files to write
+     */
+    private ArrayList<String> getLayoutOrder(List<String> copiedFiles, List<String> recompressedFiles) {
+        ArrayList<String> order = new ArrayList<>(copiedFiles);
+        for (String fileName : filenameToData) {
+            order.add(fileName);
+        }
+        order.addAll(recompressedFiles);
+        if (layoutProfile != null) {
+            Map<Long, Integer> ranks = new HashMap<>();
+            for (String fileName : layoutProfile.getFiles()) {
+                ranks.putIfAbsent(HashTable.calculateFileKey(fileName), ranks.size());
+            }
+            // rank each file once instead of hashing its name in every comparison
+            Map<String, Integer> fileRanks = new HashMap<>();
+            for (String fileName : order) {
+                fileRanks.put(fileName, ranks.getOrDefault(HashTable.calculateFileKey(fileName), Integer.MAX_VALUE));
+            }
+            order.sort(Comparator.comparingInt(fileRanks::get));
+        }
+        return order;
+    }
+
+    /**
+     * Gets the new block of an already placed copied file sharing its data
+     * with the specified file. Shared data stays shared, unless it is
+     * encrypted with a key depending on the file name.
+     *
+     * @param shared the placed copies by old file position
+     * @param b      the block of the file
+     * @return the shared block, or null if the file is copied on its own
+     */
+    private static Block getSharedCopy(Map<Long, Block> shared, Block b) {
+        Block newBlock = b.hasFlag(ENCRYPTED) ? null : shared.get(b.getFilePos());
+        if (newBlock == null || newBlock.getCompressedSize() != b.getCompressedSize() || newBlock.getFlags() != b.getFlags()) {
+            return null;
+        }
+        return newBlock;
+    }
+
+    /**
+     * Registers a placed copy for {@link #getSharedCopy(Map, Block)}.
+     *
+     * @param shared   the placed copies by old file position
+     * @param b        the block of the file
+     * @param newBlock the block of the copy
+     */
+    private static void addSharedCopy(Map<Long, Block> shared, Block b, Block newBlock) {
+        if (!b.hasFlag(ENCRYPTED)) {
+            shared.putIfAbsent(b.getFilePos(), newBlock);
+        }
+    }
 
-            MappedByteBuffer tempReader = writeChannel.map(MapMode.READ_WRITE, 0, currentPos + 1);
-            tempReader.position(0);
+    /**
+     * Gets the block of an existing file at its new position. The stored data
+     * is copied as it is, so sizes and flags do not change.
+     *
+     * @param b          the block of the file
+     * @param newFilePos the new file position
+     * @return the block of the copy
+     */
+    private static Block getCopyBlock(Block b, long newFilePos) {
+        return new Block(newFilePos, b.getCompressedSize(), b.getNormalSize(), b.getFlags());
+    }
 
-            fc.position(0);
-            fc.write(tempReader);
-            fc.truncate(fc.position());
+    /**
+     * Reads an existing file whose key depends on its position and
+     * re-encrypts it for its new position.
+     *
+     * @param name       the file name
+     * @param b          the block of the file
+     * @param newFilePos the new file position
+     * @return the data of the copy
+     * @throws IOException if reading fails
+     */
+    private ByteBuffer rekeyExistingFile(String name, Block b, long newFilePos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(b.getCompressedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        fc.position(headerOffset + b.getFilePos());
+        readFully(buf, fc);
+        buf.rewind();
+        MpqFile.rekey(buf, b, newFilePos, discBlockSize, name);
+        return buf;
+    }
 
-            fc.close();
+    /**
+     * Replaces the archive file with the rebuilt archive. An atomic move is
+     * used if the file system supports it, so the archive file is either
+     * the old or the new archive at any time.
+     *
+     * @param rebuilt the rebuilt archive, in the same directory as the archive
+     * @param target  the archive file, with symbolic links resolved
+     * @throws IOException if the archive cannot be replaced
+     */
+    private void replaceArchive(Path rebuilt, Path target) throws IOException {
+        try {
+            try {
+                Files.move(rebuilt, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(rebuilt, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(rebuilt);
         }
+    }
 
-        t = System.nanoTime() - t;
-        log.debug("Rebuild complete. Took: " + (t / 1000000) + "ms");
+    /**
+     * Gives the rebuilt archive the permissions, owner and group of the
+     * archive it replaces. Temp files are only accessible by their creator,
+     * which would otherwise be the result of every rebuild. Only the owner
+     * and group which cannot be changed by the current user are left as
+     * they are.
+     *
+     * @param archive the archive file
+     * @param rebuilt the rebuilt archive
+     * @throws IOException if the attributes cannot be read or the permissions
+     *                     cannot be set
+     */
+    private void copyFileAttributes(Path archive, Path rebuilt) throws IOException {
+        final PosixFileAttributeView view = Files.getFileAttributeView(archive, PosixFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        final PosixFileAttributes attributes = view.readAttributes();
+        final PosixFileAttributeView rebuiltView = Files.getFileAttributeView(rebuilt, PosixFileAttributeView.class);
+        try {
+            rebuiltView.setGroup(attributes.group());
+            rebuiltView.setOwner(attributes.owner());
+        } catch (IOException e) {
+            log.warn("Cannot keep the owner of " + archive + ": " + e.getMessage());
+        }
+        // set last, changing the owner may clear permission bits
+        rebuiltView.setPermissions(attributes.permissions());
+    }
+
+    /**
+     * Commits the changes without a rebuild. The blocks of unchanged files
+     * are kept where they are, new and replaced files and the listfile are
+     * written after the end of the file, followed by new tables. Finally the
+     * header is updated in place. The space of deleted and replaced files is
+     * not reclaimed.
+     *
+     * @param buildListfile whether or not to add a (listfile) to this mpq
+     * @param options       options for the new files
+     * @throws IOException if writing fails
+     */
+    private void appendInPlace(boolean buildListfile, RecompressOptions options) throws IOException {
+        prepareRebuild(options);
+
+        ArrayList<Block> newBlocks = new ArrayList<>();
+        ArrayList<String> newFiles = new ArrayList<>();
+        ArrayList<String> existingFiles = new ArrayList<>(listFile.getFiles());
+        sortListfileEntries(existingFiles);
+        existingFiles.removeIf(filenameToData::contains);
+
+        // everything the old header points to stays intact until the new header is written
+        long currentPos = getAppendPos();
+        for (String existingName : existingFiles) {
+            newFiles.add(existingName);
+            newBlocks.add(getExistingBlock(existingName));
+        }
+        final long originalSize = fc.size();
+        ArchiveWriter writer = new ArchiveWriter(fc, 0);
+        ByteBuffer headerBuffer;
+        try {
+            ArrayList<String> order = getLayoutOrder(Collections.emptyList(), Collections.emptyList());
+            startProgress(order, Collections.emptyMap(), false);
+            currentPos = writeFiles(writer, currentPos, headerOffset, order, Collections.emptyMap(), newBlocks, newFiles, options);
+            startTables();
+            if (buildListfile && !listFile.getFiles().isEmpty()) {
+                currentPos = writeListfile(writer, currentPos, headerOffset, newBlocks, newFiles, options);
+            }
+            // also checks the size limit of the format before the header is touched
+            headerBuffer = writeTables(writer, currentPos, headerOffset, newBlocks, newFiles);
+            currentPos = headerOffset + newArchiveSize - 1;
+            // the archive size includes one byte past the tables
+            writer.write(ByteBuffer.allocate(1), currentPos);
+            writer.flush();
+            force();
+        } catch (IOException | RuntimeException e) {
+            // nothing the old header points to was changed
+            fc.truncate(originalSize);
+            throw e;
+        }
+        // publish the new tables with a single header write
+        writer.write(headerBuffer, headerOffset);
+        writer.flush();
+        force();
+        fc.truncate(currentPos + 1);
+        finishProgress();
+    }
+
+    /**
+     * Gets the position at which a commit in place can write without
+     * touching anything the current header refers to. Every entry of the
+     * block table, including blocks of deleted, replaced and unlisted files
+     * such as (attributes) and (signature), lies within the file, as do data
+     * appended after the archive and tables placed in front of the file data.
+     * Only the tables of a truncated archive may point past the end of it.
+     *
+     * @return the end of the file, or the end of the tables if it is after it
+     * @throws IOException if the file size cannot be determined
+     */
+    private long getAppendPos() throws IOException {
+        return Math.max(Math.max(headerOffset + newHeaderSize, getTablesEnd()), fc.size());
+    }
+
+    /**
+     * @return the file position after the last table of the archive
+     * @throws IOException if the archive size cannot be determined
+     */
+    private long getTablesEnd() throws IOException {
+        final long[] tablePos = {hashPos, blockPos, hiBlockPos, hetPos, betPos};
+        final long[] tableSize = {
+            hashTableSize != 0 ? hashTableSize : hashSize * 16L,
+            blockTableSize != 0 ? blockTableSize : blockSize * 16L,
+            hiBlockTableSize != 0 ? hiBlockTableSize : blockSize * 2L,
+            hetSize != 0 ? hetSize : getNextTablePos(hetPos) - hetPos,
+            betSize != 0 ? betSize : getNextTablePos(betPos) - betPos};
+        long end = 0;
+        for (int i = 0; i < tablePos.length; i++) {
+            if (tablePos[i] != 0) {
+                end = Math.max(end, headerOffset + tablePos[i] + tableSize[i]);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Forces written data to the storage device, so later writes cannot
+     * reach it first.
+     *
+     * @throws IOException if forcing fails
+     */
+    private void force() throws IOException {
+        if (fc instanceof FileChannel) {
+            ((FileChannel) fc).force(false);
+        }
+    }
+
+    /**
+     * Commits deletes and renames by writing new tables. Hash table entries
+     * of deleted files are tombstoned, renamed files move to the entry of
+     * their new name, and blocks no file uses any more are marked as free.
+     * No other file data is written.
+     * <p>
+     * The new listfile and tables are written at the end of the file, after
+     * all blocks and tables of the old archive, wherever the tables were
+     * placed. They stay intact until a single header write switches to the
+     * new tables, so the old archive remains valid until the header is
+     * written and the new one after.
+     * <p>
+     * This is only possible if no files were inserted, the archive has no
+     * HET and BET tables and, for a new listfile, a block table entry is
+     * free.
+     *
+     * @param buildListfile whether or not to add a (listfile) to this mpq
+     * @param options       options for the listfile
+     * @return false if the tables cannot be rewritten in place, nothing was written then
+     * @throws IOException if writing fails
+     */
+    private boolean rewriteTablesInPlace(boolean buildListfile, RecompressOptions options) throws IOException {
+        ByteBuffer storedVersion = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+        readFullyAt(storedVersion, headerOffset + 12);
+        if (!filenameToData.isEmpty() || hashTable == null || hetTable != null || formatVersion > 1 || storedVersion.getShort(0) != formatVersion) {
+            return false;
+        }
+        prepareRebuild(options);
+        // the sector size does not change, the listfile is written for the existing one
+        newSectorSizeShift = sectorSizeShift;
+        newDiscBlockSize = discBlockSize;
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < blockSize; i++) {
+            blocks.add(blockTable.getBlockAtPos(i));
+        }
+        // the tables of the editor stay as they are until the new tables are written
+        final ByteBuffer hashTableCopy = ByteBuffer.allocate(hashSize * 16);
+        hashTable.writeToBuffer(hashTableCopy);
+        hashTableCopy.flip();
+        final HashTable newHashTable = new HashTable(hashSize);
+        newHashTable.readFromBuffer(hashTableCopy);
+        int listfileIndex = newHashTable.hasFile("(listfile)") ? newHashTable.getBlockIndexOfFile("(listfile)") : -1;
+
+        // look up the blocks of renamed files before any entry changes
+        Map<String, Integer> renamedBlocks = new LinkedHashMap<>();
+        for (String name : listFile.getFiles()) {
+            String source = getSourceName(name);
+            if (!source.equals(name)) {
+                renamedBlocks.put(name, newHashTable.getBlockIndexOfFile(source));
+            }
+        }
+        Set<String> removed = new LinkedHashSet<>(deletedFiles);
+        for (String name : renamedBlocks.keySet()) {
+            removed.add(getSourceName(name));
+        }
+        removed.add("(listfile)");
+        if (!listFile.containsFile("(attributes)")) {
+            // a rebuild does not keep it either, its entries would be outdated
+            removed.add("(attributes)");
+        }
+        for (String name : removed) {
+            if (newHashTable.hasFile(name)) {
+                newHashTable.removeFileAll(name);
+            }
+        }
+        for (Map.Entry<String, Integer> renamed : renamedBlocks.entrySet()) {
+            newHashTable.setFileBlockIndex(renamed.getKey(), HashTable.DEFAULT_LOCALE, renamed.getValue());
+        }
+        BitSet used = newHashTable.getUsedBlockIndices();
+        ArrayList<Integer> freed = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i).hasFlag(EXISTS) && !used.get(i)) {
+                freed.add(i);
+            }
+        }
+
+        // the new listfile follows the old archive and takes the entry of the old listfile or another freed entry
+        long currentPos = getAppendPos();
+        ByteBuffer listfileData = null;
+        long listfilePos = currentPos;
+        if (buildListfile && !listFile.getFiles().isEmpty()) {
+            int target = freed.contains(listfileIndex) ? listfileIndex : freed.isEmpty() ? -1 : freed.get(0);
+            if (target == -1) {
+                return false;
+            }
+            SeekableInMemoryByteChannel staged = new SeekableInMemoryByteChannel();
+            Block listfileBlock = encodeListfile(listfilePos - headerOffset, options, staged);
+            blocks.set(target, listfileBlock);
+            freed.remove((Integer) target);
+            newHashTable.setFileBlockIndex("(listfile)", HashTable.DEFAULT_LOCALE, target);
+            listfileData = ByteBuffer.wrap(staged.array(), 0, (int) staged.size());
+            currentPos += listfileData.remaining();
+        }
+        for (int i : freed) {
+            // the space stays allocated, but no longer belongs to a file
+            Block b = blocks.get(i);
+            blocks.set(i, new Block(b.getFilePos(), b.getCompressedSize(), 0, 0));
+        }
+
+        final ByteBuffer hashTableBuffer = ByteBuffer.allocate(hashSize * 16);
+        newHashTable.writeToBuffer(hashTableBuffer);
+        hashTableBuffer.flip();
+        new MPQEncryption(KEY_HASH_TABLE, false).processSingle(hashTableBuffer);
+        hashTableBuffer.rewind();
+        final ByteBuffer blockTableBuffer = ByteBuffer.allocate(blockSize * 16).order(ByteOrder.LITTLE_ENDIAN);
+        BlockTable.writeNewBlocktable(blocks, blockSize, blockTableBuffer);
+        blockTableBuffer.flip();
+        ByteBuffer hiBlockTableBuffer = null;
+        if (formatVersion >= 1 && (hiBlockPos != 0 || BlockTable.needsHiBlockTable(blocks))) {
+            hiBlockTableBuffer = ByteBuffer.allocate(blockSize * 2);
+            BlockTable.writeHiBlockTable(blocks, hiBlockTableBuffer);
+            hiBlockTableBuffer.flip();
+        }
+        newHashPos = currentPos - headerOffset;
+        newBlockPos = newHashPos + hashTableBuffer.remaining();
+        newHiBlockPos = hiBlockTableBuffer != null ? newBlockPos + blockTableBuffer.remaining() : 0;
+        newHetPos = 0;
+        newBetPos = 0;
+        newHashSize = hashSize;
+        newBlockSize = blockSize;
+        final long tablesEnd = newBlockPos + blockTableBuffer.remaining() + (hiBlockTableBuffer != null ? hiBlockTableBuffer.remaining() : 0);
+        if (formatVersion == 0 && tablesEnd >>> 32 != 0) {
+            // the append fails the same way, without writing anything either
+            return false;
+        }
+        newArchiveSize = tablesEnd + 1;
+        ByteBuffer headerBuffer = ByteBuffer.allocate(newHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(headerBuffer, hashTableBuffer, blockTableBuffer, hiBlockTableBuffer, null, null);
+        headerBuffer.flip();
+
+        startProgress(Collections.emptyList(), Collections.emptyMap(), false);
+        startTables();
+        final long originalSize = fc.size();
+        ArchiveWriter writer = new ArchiveWriter(fc, 0);
+        try {
+            if (listfileData != null) {
+                writer.write(listfileData, listfilePos);
+            }
+            writer.write(hashTableBuffer, headerOffset + newHashPos);
+            writer.write(blockTableBuffer, headerOffset + newBlockPos);
+            if (hiBlockTableBuffer != null) {
+                writer.write(hiBlockTableBuffer, headerOffset + newHiBlockPos);
+            }
+            // the archive size includes one byte past the tables
+            writer.write(ByteBuffer.allocate(1), headerOffset + tablesEnd);
+            writer.flush();
+            force();
+        } catch (IOException | RuntimeException e) {
+            // nothing the old header points to was changed
+            fc.truncate(originalSize);
+            throw e;
+        }
+        // publish the new tables with a single header write
+        writer.write(headerBuffer, headerOffset);
+        writer.flush();
+        force();
+        hashTable = newHashTable;
+        finishProgress();
+        return true;
+    }
+
+    /**
+     * Encodes the listfile for the specified position. The encoded size does
+     * not depend on the position.
+     *
+     * @param filePos the file position of the listfile
+     * @param options the compression options
+     * @param target  receives the encoded listfile
+     * @return the block of the listfile
+     * @throws IOException if writing fails
+     */
+    private Block encodeListfile(long filePos, RecompressOptions options, SeekableInMemoryByteChannel target) throws IOException {
+        ArchiveWriter writer = new ArchiveWriter(target, headerOffset + filePos);
+        ArrayList<Block> listfileBlocks = new ArrayList<>();
+        writeListfile(writer, headerOffset + filePos, headerOffset, listfileBlocks, new ArrayList<>(), options);
+        writer.flush();
+        return listfileBlocks.get(0);
+    }
+
+    /**
+     * Writes the files in the specified order. Copied files are transferred
+     * from the archive, inserted files are streamed sector by sector into the
+     * archive channel. If enabled, a file with the same content as an earlier
+     * inserted file is not written again and shares the block of the earlier
+     * file.
+     *
+     * @param writer       the archive writer
+     * @param currentPos   the file position to write the first file to
+     * @param archiveStart the file position of the header
+     * @param order        the names of the files to write
+     * @param copiedBlocks the blocks of the files of the order which are copied from the archive
+     * @param newBlocks    receives the blocks of the files
+     * @param newFiles     receives the file names
+     * @param options      the compression options
+     * @return the file position after the written files
+     * @throws IOException if reading a file or writing fails
+     */
+    private long writeFiles(ArchiveWriter writer, long currentPos, long archiveStart, List<String> order, Map<String, Block> copiedBlocks,
+                            ArrayList<Block> newBlocks, ArrayList<String> newFiles, RecompressOptions options) throws IOException {
+        ArrayList<String> insertedNames = new ArrayList<>(order);
+        insertedNames.removeAll(copiedBlocks.keySet());
+        try (CompressionPipeline pipeline = new CompressionPipeline(options, newDiscBlockSize, deduplicateFiles, insertedNames.iterator(), filenameToData::get)) {
+            Map<Long, Block> shared = new HashMap<>();
+            Map<String, Block> written = new HashMap<>();
+            for (String name : order) {
+                newFiles.add(name);
+                Block b = copiedBlocks.get(name);
+                if (b != null) {
+                    startFile(RebuildProgress.Phase.COPY_EXISTING, name);
+                    Block newBlock = getSharedCopy(shared, b);
+                    if (newBlock == null) {
+                        newBlock = getCopyBlock(b, currentPos - archiveStart);
+                        addSharedCopy(shared, b, newBlock);
+                        if (MpqFile.needsRekey(b, newBlock.getFilePos())) {
+                            writer.write(rekeyExistingFile(getSourceName(name), b, newBlock.getFilePos()), currentPos);
+                        } else {
+                            writer.transfer(fc, headerOffset + b.getFilePos(), Integer.toUnsignedLong(b.getCompressedSize()), currentPos);
+                        }
+                        currentPos += Integer.toUnsignedLong(newBlock.getCompressedSize());
+                    }
+                    newBlocks.add(newBlock);
+                    finishFile(Integer.toUnsignedLong(b.getCompressedSize()));
+                    continue;
+                }
+                startFile(RebuildProgress.Phase.COMPRESS_NEW, name);
+                CompressionPipeline.Job job = pipeline.next();
+                if (job.getDuplicateOf() != null) {
+                    newBlocks.add(written.get(job.getDuplicateOf()));
+                    finishFile(job.getSize());
+                    log.debug("Added file " + job.getName() + " as duplicate of " + job.getDuplicateOf());
+                    continue;
+                }
+                Block newBlock = new Block(currentPos - archiveStart, 0, 0, 0);
+                newBlocks.add(newBlock);
+                MpqFile.writeFileAndBlock(job.getSize(), newBlock, job, writer.sinkAt(currentPos), newDiscBlockSize, "", options, job);
+                written.put(job.getName(), newBlock);
+                currentPos += Integer.toUnsignedLong(newBlock.getCompressedSize());
+                finishFile(job.getSize());
+                log.debug("Added file " + job.getName());
+            }
+        }
+        return currentPos;
+    }
+
+    /**
+     * Starts reporting the progress of a build to the rebuild listener.
+     *
+     * @param order       the names of the files to write
+     * @param copiedBlocks the blocks of the files of the order which are copied from the archive
+     * @param cancellable whether or not the build can be cancelled between files
+     * @throws IOException if the size of an inserted file cannot be determined
+     */
+    private void startProgress(List<String> order, Map<String, Block> copiedBlocks, boolean cancellable) throws IOException {
+        long byteCount = 0;
+        for (String name : order) {
+            byteCount += copiedBlocks.containsKey(name) ? Integer.toUnsignedLong(copiedBlocks.get(name).getCompressedSize())
+                : filenameToData.get(name).size();
+        }
+        this.progress = new RebuildProgress(order.size(), byteCount);
+        this.cancellable = cancellable;
+    }
+
+    /**
+     * Reports the start of a file, after checking whether the build was cancelled.
+     *
+     * @param phase the phase the file belongs to
+     * @param name  the file name
+     * @throws RebuildCancelledException if the build was cancelled
+     */
+    private void startFile(RebuildProgress.Phase phase, String name) throws RebuildCancelledException {
+        if (cancellable) {
+            checkCancelled();
+        }
+        if (progress.setPhase(phase)) {
+            rebuildListener.phaseStarted(progress);
+        }
+        progress.setCurrentFile(name);
+        rebuildListener.fileStarted(progress);
+    }
+
+    /**
+     * @param bytes the bytes of the finished file
+     */
+    private void finishFile(long bytes) {
+        progress.fileDone(bytes);
+        rebuildListener.fileFinished(progress);
+    }
+
+    /**
+     * Reports the start of the listfile and tables, after checking whether
+     * the build was cancelled. Once started, the build runs to the end.
+     *
+     * @throws RebuildCancelledException if the build was cancelled
+     */
+    private void startTables() throws RebuildCancelledException {
+        if (cancellable) {
+            checkCancelled();
+        }
+        progress.setCurrentFile(null);
+        if (progress.setPhase(RebuildProgress.Phase.TABLES)) {
+            rebuildListener.phaseStarted(progress);
+        }
+    }
+
+    private void finishProgress() {
+        rebuildListener.finished(progress);
+        progress = null;
+    }
+
+    /**
+     * @throws RebuildCancelledException if the rebuild listener cancelled the build
+     */
+    private void checkCancelled() throws RebuildCancelledException {
+        if (rebuildListener.isCancelled()) {
+            throw new RebuildCancelledException("The build of " + (mpqPath == null ? "the mpq" : mpqPath.getFileName()) + " was cancelled");
+        }
+    }
+
+    /**
+     * Writes the listfile to the archive channel.
+     *
+     * @param writer       the archive writer
+     * @param currentPos   the file position to write the listfile to
+     * @param archiveStart the file position of the header
+     * @param newBlocks    receives the block of the listfile
+     * @param newFiles     receives the listfile name
+     * @param options      the compression options
+     * @return the file position after the listfile
+     * @throws IOException if writing fails
+     */
+    private long writeListfile(ArchiveWriter writer, long currentPos, long archiveStart, ArrayList<Block> newBlocks,
+                               ArrayList<String> newFiles, RecompressOptions options) throws IOException {
+        newFiles.add("(listfile)");
+        Block newBlock = new Block(currentPos - archiveStart, 0, 0, EXISTS | COMPRESSED | ENCRYPTED | ADJUSTED_ENCRYPTED);
+        newBlocks.add(newBlock);
+        byte[] listfileArr = listFile.asByteArray();
+        MpqFile.writeFileAndBlock(listfileArr.length, newBlock, MpqFile.sectorsOf(listfileArr, newDiscBlockSize),
+            writer.sinkAt(currentPos), newDiscBlockSize, "(listfile)", options,
+            (index, sector) -> MpqFile.compressSector(sector, options));
+        return currentPos + newBlock.getCompressedSize();
+    }
+
+    /**
+     * Writes the tables for the specified blocks after the file data, followed
+     * by the header at the archive start.
+     *
+     * @param writer       the archive writer
+     * @param currentPos   the file position after the file data
+     * @param archiveStart the file position of the header
+     * @param newBlocks    the blocks in table order
+     * @param newFiles     the file names of the blocks
+     * @return the file position after the written tables
+     * @throws IOException if writing fails
+     */
+    private long writeTablesAndHeader(ArchiveWriter writer, long currentPos, long archiveStart,
+                                      ArrayList<Block> newBlocks, ArrayList<String> newFiles) throws IOException {
+        ByteBuffer headerBuffer = writeTables(writer, currentPos, archiveStart, newBlocks, newFiles);
+        writer.write(headerBuffer, archiveStart);
+        return archiveStart + newArchiveSize - 1;
+    }
+
+    /**
+     * Writes the tables for the specified blocks after the file data and
+     * builds the matching header.
+     * <p>
+     * Files sharing a block have the same block object. Without HET and BET
+     * tables they share a single block table entry. The BET table has a name
+     * hash per entry, so with it each file keeps its own entry pointing to
+     * the same data.
+     *
+     * @param writer       the archive writer
+     * @param currentPos   the file position after the file data
+     * @param archiveStart the file position of the header
+     * @param newBlocks    the blocks in table order
+     * @param newFiles     the file names of the blocks
+     * @return the header, ready to be written
+     * @throws IOException if writing fails or the archive is too large for its format
+     */
+    private ByteBuffer writeTables(ArchiveWriter writer, long currentPos, long archiveStart,
+                                   ArrayList<Block> newBlocks, ArrayList<String> newFiles) throws IOException {
+        return writeTables(writer, currentPos, archiveStart, newBlocks, newFiles, true);
+    }
+
+    /**
+     * Writes the tables for the specified blocks after the file data and
+     * builds the matching header.
+     *
+     * @param writer       the archive writer
+     * @param currentPos   the file position after the file data
+     * @param archiveStart the file position of the header
+     * @param newBlocks    the blocks in table order
+     * @param newFiles     the file names of the blocks
+     * @param checkSize    whether an archive too large for its format fails,
+     *                     false to measure the tables of a projected layout
+     * @return the header, ready to be written
+     * @throws IOException if writing fails or the archive is too large for its format
+     */
+    private ByteBuffer writeTables(ArchiveWriter writer, long currentPos, long archiveStart,
+                                   ArrayList<Block> newBlocks, ArrayList<String> newFiles, boolean checkSize) throws IOException {
+        ArrayList<Block> tableBlocks = new ArrayList<>();
+        int[] blockIndexes = new int[newFiles.size()];
+        IdentityHashMap<Block, Integer> sharedBlocks = new IdentityHashMap<>();
+        for (int i = 0; i < newBlocks.size(); i++) {
+            Block block = newBlocks.get(i);
+            Integer index = newFormatVersion >= 2 ? null : sharedBlocks.putIfAbsent(block, tableBlocks.size());
+            if (index == null) {
+                index = tableBlocks.size();
+                tableBlocks.add(block);
+            }
+            blockIndexes[i] = index;
+        }
+        newBlockSize = tableBlocks.size();
+
+        // prepare HET and BET tables for writing
+        ByteBuffer hetTableBuffer = null;
+        ByteBuffer betTableBuffer = null;
+        if (newFormatVersion >= 2) {
+            HetTable hetTable = new HetTable(newFiles);
+            BetTable betTable = new BetTable(newBlocks, newFiles, hetTable);
+            hetTableBuffer = ByteBuffer.allocate(hetTable.getTableSize());
+            hetTable.writeToBuffer(hetTableBuffer);
+            encryptExtTable(hetTableBuffer, KEY_HASH_TABLE);
+            betTableBuffer = ByteBuffer.allocate(betTable.getTableSize());
+            betTable.writeToBuffer(betTableBuffer);
+            encryptExtTable(betTableBuffer, KEY_BLOCK_TABLE);
+        }
+
+        // generate new hash table
+        final int hashSize = newHashSize;
+        HashTable hashTable = new HashTable(hashSize);
+        for (int i = 0; i < newFiles.size(); i++) {
+            hashTable.setFileBlockIndex(newFiles.get(i), HashTable.DEFAULT_LOCALE, blockIndexes[i]);
+        }
+
+        // prepare hashtable for writing
+        final ByteBuffer hashTableBuffer = ByteBuffer.allocate(hashSize * 16);
+        hashTable.writeToBuffer(hashTableBuffer);
+        hashTableBuffer.flip();
+
+        // encrypt hash table
+        final MPQEncryption encrypt = new MPQEncryption(KEY_HASH_TABLE, false);
+        encrypt.processSingle(hashTableBuffer);
+        hashTableBuffer.rewind();
+
+        // prepare block table for writing
+        final ByteBuffer blockTableBuffer = ByteBuffer.allocate(newBlockSize * 16).order(ByteOrder.LITTLE_ENDIAN);
+        BlockTable.writeNewBlocktable(tableBlocks, newBlockSize, blockTableBuffer);
+        blockTableBuffer.flip();
+
+        // prepare hi-block table for writing
+        ByteBuffer hiBlockTableBuffer = null;
+        if (BlockTable.needsHiBlockTable(tableBlocks)) {
+            hiBlockTableBuffer = ByteBuffer.allocate(newBlockSize * 2);
+            BlockTable.writeHiBlockTable(tableBlocks, hiBlockTableBuffer);
+            hiBlockTableBuffer.flip();
+        }
+
+        // write out tables
+        newHetPos = 0;
+        newBetPos = 0;
+        if (hetTableBuffer != null) {
+            newHetPos = currentPos - archiveStart;
+            writer.write(hetTableBuffer.duplicate(), currentPos);
+            currentPos += hetTableBuffer.remaining();
+            newBetPos = currentPos - archiveStart;
+            writer.write(betTableBuffer.duplicate(), currentPos);
+            currentPos += betTableBuffer.remaining();
+        }
+        newHashPos = currentPos - archiveStart;
+        writer.write(hashTableBuffer.duplicate(), currentPos);
+        currentPos += hashTableBuffer.remaining();
+        newBlockPos = currentPos - archiveStart;
+        writer.write(blockTableBuffer.duplicate(), currentPos);
+        currentPos += blockTableBuffer.remaining();
+        newHiBlockPos = 0;
+        if (hiBlockTableBuffer != null) {
+            newHiBlockPos = currentPos - archiveStart;
+            writer.write(hiBlockTableBuffer.duplicate(), currentPos);
+            currentPos += hiBlockTableBuffer.remaining();
+        }
+
+        if (checkSize && newFormatVersion == 0 && (hiBlockTableBuffer != null || (currentPos - archiveStart) >>> 32 != 0)) {
+            throw new JMpqException("Archive exceeds 4 GB which requires format version 1 or newer");
+        }
+
+        newArchiveSize = currentPos + 1 - archiveStart;
+
+        // build header
+        ByteBuffer headerBuffer = ByteBuffer.allocate(newHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(headerBuffer, hashTableBuffer, blockTableBuffer, hiBlockTableBuffer, hetTableBuffer, betTableBuffer);
+        headerBuffer.flip();
+        return headerBuffer;
+    }
+
+    /**
+     * Gets the header size of the specified format version.
+     *
+     * @param formatVersion the format version
+     * @return the header size
+     */
+    private static int getHeaderSize(int formatVersion) {
+        switch (formatVersion) {
+            case 0:
+                return 32;
+            case 1:
+                return 44;
+            case 2:
+                return 68;
+            default:
+                return 208;
+        }
     }
 
     private void sortListfileEntries(ArrayList<String> remainingFiles) {
-        // Sort entries to preserve block table order
-        remainingFiles.sort((o1, o2) -> {
-            int pos1 = 999999999;
-            int pos2 = 999999999;
+        // Sort entries to preserve block table order, each name is looked up once
+        Map<String, Integer> positions = new HashMap<>();
+        for (String name : remainingFiles) {
+            int pos = 999999999;
             try {
-                pos1 = hashTable.getBlockIndexOfFile(o1);
+                pos = getBlockIndexOfFile(getSourceName(name));
             } catch (IOException ignored) {
             }
-            try {
-                pos2 = hashTable.getBlockIndexOfFile(o2);
-            } catch (IOException ignored) {
+            positions.put(name, pos);
+        }
+        remainingFiles.sort(Comparator.comparingInt(positions::get));
+    }
+
+    /**
+     * Gets the block index of the specified file. The HET table is preferred
+     * over the hash table if the archive has one.
+     *
+     * @param name the name
+     * @return the block index
+     * @throws IOException if the file has no mapping
+     */
+    private int getBlockIndexOfFile(String name) throws IOException {
+        if (hetTable != null) {
+            int pos = hetTable.getFileIndex(name, betTable);
+            if (pos == -1) {
+                throw new JMpqException("File Not Found <" + name + ">.");
             }
-            return pos1 - pos2;
-        });
+            return pos;
+        }
+        return hashTable.getBlockIndexOfFile(name);
+    }
+
+    /**
+     * @param name the current name of a file
+     * @return the name of the file in the archive, differing from the
+     * current name if the file was renamed
+     */
+    private String getSourceName(String name) {
+        return renamedFiles.getOrDefault(HashTable.calculateFileKey(name), name);
+    }
+
+    /**
+     * Gets the block of an existing file, which may have been renamed.
+     *
+     * @param name the current name of the file
+     * @return the block
+     * @throws IOException if the file has no mapping
+     */
+    private Block getExistingBlock(String name) throws IOException {
+        return getBlockAtPos(getBlockIndexOfFile(getSourceName(name)));
+    }
+
+    /**
+     * Gets the block at the specified index. The BET table is preferred over
+     * the block table if the archive has one.
+     *
+     * @param pos the block index
+     * @return the block
+     * @throws JMpqException if the index is invalid
+     */
+    private Block getBlockAtPos(int pos) throws JMpqException {
+        return betTable != null ? betTable.getBlockAtPos(pos) : blockTable.getBlockAtPos(pos);
+    }
+
+    private ArrayList<Block> getAllVaildBlocks() throws JMpqException {
+        return betTable != null ? betTable.getAllVaildBlocks() : blockTable.getAllVaildBlocks();
     }
 
     /**
@@ -1160,6 +2797,27 @@ public class JMpqEditor implements AutoCloseable {
         }
     }
 
+    /**
+     * Gets the archive as it is stored. Once the editor is closed, this is
+     * the rebuilt archive, pending changes are not included before. An
+     * archive in a file is read from the file, so after a close into another
+     * target it is the unchanged archive.
+     *
+     * @return a copy of the archive
+     * @throws IOException if the archive file cannot be read or is too large
+     *                     for an array
+     */
+    public byte[] toByteArray() throws IOException {
+        if (mpqPath != null) {
+            if (Files.size(mpqPath) > Integer.MAX_VALUE - 8) {
+                throw new JMpqException(mpqPath + " is too large for an array");
+            }
+            return Files.readAllBytes(mpqPath);
+        }
+        final SeekableInMemoryByteChannel archive = (SeekableInMemoryByteChannel) fc;
+        return Arrays.copyOf(archive.array(), (int) archive.size());
+    }
+
     /**
      * @return Whether the map can be modified or not
      */
@@ -1176,6 +2834,69 @@ public class JMpqEditor implements AutoCloseable {
         this.keepHeaderOffset = keepHeaderOffset;
     }
 
+    /**
+     * Whether or not to commit changes by appending them to the archive
+     * instead of rebuilding it. New and replaced files are written after the
+     * last used block together with new tables, and the header is updated in
+     * place. Space of deleted or replaced files is not reclaimed. A full
+     * rebuild is still done when recompressing, or when the data before the
+     * mpq is not kept.
+     * <p>
+     * If files were only deleted or renamed, the hash and block tables and
+     * the listfile of format version 0 and 1 archives are rewritten where
+     * they are, without writing any file data.
+     *
+     * @param appendInPlace
+     */
+    public void setAppendInPlace(boolean appendInPlace) {
+        this.appendInPlace = appendInPlace;
+    }
+
+    /**
+     * Whether or not to store inserted files with identical content only
+     * once. The files then share a single block, which the format allows.
+     * Files are compared by a hash of their content when the archive is
+     * written, files larger than 64 MB are always stored separately.
+     * Existing files which already share a block keep sharing it either way.
+     *
+     * @param deduplicateFiles
+     */
+    public void setDeduplicateFiles(boolean deduplicateFiles) {
+        this.deduplicateFiles = deduplicateFiles;
+    }
+
+    /**
+     * Records the names of the files read through this editor, such as with
+     * {@link #extractFile(String, File)} or {@link #getMpqFile(String)}.
+     * Files read internally while rebuilding are not recorded.
+     *
+     * @param profile the profile receiving the accesses, or null to stop recording
+     */
+    public void recordAccess(AccessProfile profile) {
+        this.accessRecorder = profile;
+    }
+
+    /**
+     * Sets the profile whose files are placed at the front of the archive in
+     * profile order when it is rebuilt. All other files follow in their
+     * usual order. Without a profile the layout is unchanged.
+     *
+     * @param profile the access profile, or null for the default layout
+     */
+    public void setLayoutProfile(AccessProfile profile) {
+        this.layoutProfile = profile;
+    }
+
+    /**
+     * Sets the listener which receives the progress of the close methods and
+     * can cancel them.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public void setRebuildListener(RebuildListener listener) {
+        this.rebuildListener = listener == null ? NO_LISTENER : listener;
+    }
+
 
     /**
      * Get block table block table.
@@ -1190,6 +2911,92 @@ public class JMpqEditor implements AutoCloseable {
         return hashTable;
     }
 
+    /**
+     * @return the HET table, null if the archive has none
+     */
+    public HetTable getHetTable() {
+        return hetTable;
+    }
+
+    /**
+     * @return the BET table, null if the archive has none
+     */
+    public BetTable getBetTable() {
+        return betTable;
+    }
+
+    /**
+     * Verifies the MD5 digests of the archive. These are the header and table
+     * digests stored in the header of format version 3 archives, and the raw
+     * chunk digests following each file and table if the archive has any.
+     * Archives of older format versions have no digests and always pass.
+     * <p>
+     * The checks run in parallel on all available processors.
+     *
+     * @throws JMpqException if a digest does not match
+     * @throws IOException   if the archive cannot be read
+     */
+    public void verifyIntegrity() throws IOException {
+        if (headerDigests == null) {
+            return;
+        }
+        final IntegrityVerifier verifier = new IntegrityVerifier(this::readFullyAt);
+        final long[] tablePos = {blockPos, hashPos, hiBlockPos, betPos, hetPos};
+        final long[] tableSize = {
+            blockTableSize != 0 ? blockTableSize : blockSize * 16L,
+            hashTableSize != 0 ? hashTableSize : hashSize * 16L,
+            hiBlockTableSize != 0 ? hiBlockTableSize : hiBlockPos != 0 ? blockSize * 2L : 0,
+            betSize, hetSize};
+        final String[] tableName = {"Block table", "Hash table", "Hi-block table", "BET table", "HET table"};
+        for (int i = 0; i < tablePos.length; i++) {
+            if (tablePos[i] == 0 || tableSize[i] == 0) {
+                continue;
+            }
+            verifier.addDigest(tableName[i], headerOffset + tablePos[i], tableSize[i], headerDigests[i]);
+            if (rawChunkSize != 0) {
+                verifier.addChunkDigests(tableName[i], headerOffset + tablePos[i], tableSize[i], rawChunkSize);
+            }
+        }
+        verifier.addDigest("Header", headerOffset, 0xC0, headerDigests[5]);
+        if (rawChunkSize != 0) {
+            for (Block b : getAllVaildBlocks()) {
+                if (b.getCompressedSize() != 0) {
+                    verifier.addChunkDigests("File at " + b.getFilePos(), headerOffset + b.getFilePos(),
+                        Integer.toUnsignedLong(b.getCompressedSize()), rawChunkSize);
+                }
+            }
+        }
+
+        final List<String> failures = verifier.verify();
+        if (!failures.isEmpty()) {
+            throw new JMpqException("Integrity check failed: " + String.join(", ", failures));
+        }
+    }
+
+    /**
+     * Reads from an absolute file position without moving the channel
+     * position of file channels, so it can be used from multiple threads.
+     *
+     * @param buffer buffer to fill
+     * @param pos    file position to read from
+     * @throws IOException if not enough bytes can be read
+     */
+    private void readFullyAt(ByteBuffer buffer, long pos) throws IOException {
+        if (fc instanceof FileChannel) {
+            while (buffer.hasRemaining()) {
+                final int read = ((FileChannel) fc).read(buffer, pos);
+                if (read < 1)
+                    throw new EOFException("Cannot read enough bytes.");
+                pos += read;
+            }
+        } else {
+            synchronized (fc) {
+                fc.position(pos);
+                readFully(buffer, fc);
+            }
+        }
+    }
+
     /**
      * (non-Javadoc)
      *
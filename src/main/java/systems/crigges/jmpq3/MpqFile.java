@@ -3,6 +3,7 @@ package systems.crigges.jmpq3;
 
 import systems.crigges.jmpq3.BlockTable.Block;
 import systems.crigges.jmpq3.compression.CompressionUtil;
+import systems.crigges.jmpq3.compression.FileCompression;
 import systems.crigges.jmpq3.compression.RecompressOptions;
 import systems.crigges.jmpq3.security.MPQEncryption;
 import systems.crigges.jmpq3.security.MPQHashGenerator;
@@ -10,6 +11,7 @@ import systems.crigges.jmpq3.security.MPQHashGenerator;
 import java.io.*;
 import java.nio.*;
 import java.nio.file.Files;
+import java.util.Arrays;
 
 public class MpqFile {
     public static final int COMPRESSED = 0x00000200;
@@ -19,6 +21,7 @@ public class MpqFile {
     public static final int EXISTS = 0x80000000;
     public static final int DELETED = 0x02000000;
     public static final int IMPLODED = 0x00000100;
+    public static final int SECTOR_CRC = 0x04000000;
 
     private final ByteBuffer buf;
     private final Block block;
@@ -49,7 +52,7 @@ public class MpqFile {
             keyGen.process(pathlessName);
             baseKey = keyGen.getHash();
             if (b.hasFlag(ADJUSTED_ENCRYPTED)) {
-                baseKey = ((baseKey + b.getFilePos()) ^ b.getNormalSize());
+                baseKey = ((baseKey + (int) b.getFilePos()) ^ b.getNormalSize());
             }
         }
     }
@@ -92,13 +95,8 @@ public class MpqFile {
     }
 
     private void extractCompressedBlock(OutputStream writer) throws IOException {
-        buf.position(0);
-        byte[] sot = new byte[sectorCount * 4];
-        buf.get(sot);
-        if (isEncrypted) {
-            new MPQEncryption(baseKey - 1, true).processSingle(ByteBuffer.wrap(sot));
-        }
-        ByteBuffer sotBuffer = ByteBuffer.wrap(sot).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer sotBuffer = readSectorOffsetTable();
+        int[] checksums = readSectorChecksums(sotBuffer);
         int start = sotBuffer.getInt();
         int end = sotBuffer.getInt();
         int finalSize = 0;
@@ -108,6 +106,7 @@ public class MpqFile {
             if (isEncrypted) {
                 new MPQEncryption(baseKey + i, true).processSingle(ByteBuffer.wrap(arr));
             }
+            checkSector(arr, i, checksums);
             if (block.getNormalSize() - finalSize <= sectorSize) {
                 arr = decompressSector(arr, end - start, block.getNormalSize() - finalSize);
             } else {
@@ -149,13 +148,8 @@ public class MpqFile {
 
     private boolean extractImplodedBlock(OutputStream writer) throws IOException {
         if (block.hasFlag(IMPLODED)) {
-            buf.position(0);
-            byte[] sot = new byte[sectorCount * 4];
-            buf.get(sot);
-            if (isEncrypted) {
-                new MPQEncryption(baseKey - 1, true).processSingle(ByteBuffer.wrap(sot));
-            }
-            ByteBuffer sotBuffer = ByteBuffer.wrap(sot).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer sotBuffer = readSectorOffsetTable();
+            int[] checksums = readSectorChecksums(sotBuffer);
             int start = sotBuffer.getInt();
             int end = sotBuffer.getInt();
             int finalSize = 0;
@@ -165,6 +159,7 @@ public class MpqFile {
                 if (isEncrypted) {
                     new MPQEncryption(baseKey + i, true).processSingle(ByteBuffer.wrap(arr));
                 }
+                checkSector(arr, i, checksums);
                 if (block.getNormalSize() - finalSize <= sectorSize) {
                     arr = decompressImplodedSector(arr, end - start, block.getNormalSize() - finalSize);
                 } else {
@@ -187,6 +182,90 @@ public class MpqFile {
         return false;
     }
 
+    /**
+     * Reads and decrypts the sector offset table. If the file has sector
+     * checksums the table has an additional entry marking the end of the
+     * checksum data.
+     *
+     * @return the sector offset table
+     */
+    private ByteBuffer readSectorOffsetTable() {
+        buf.position(0);
+        byte[] sot = new byte[(block.hasFlag(SECTOR_CRC) ? sectorCount + 1 : sectorCount) * 4];
+        buf.get(sot);
+        if (isEncrypted) {
+            new MPQEncryption(baseKey - 1, true).processSingle(ByteBuffer.wrap(sot));
+        }
+        return ByteBuffer.wrap(sot).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads the sector checksums which follow the last sector. The checksum
+     * data is not encrypted but may be compressed.
+     *
+     * @param sotBuffer the sector offset table
+     * @return the checksum of each sector, or null if the file has none
+     * @throws JMpqException if the checksum data cannot be decompressed
+     */
+    private int[] readSectorChecksums(ByteBuffer sotBuffer) throws JMpqException {
+        if (!block.hasFlag(SECTOR_CRC)) {
+            return null;
+        }
+        final int start = sotBuffer.getInt((sectorCount - 1) * 4);
+        final int length = sotBuffer.getInt(sectorCount * 4) - start;
+        final int expectedLength = (sectorCount - 1) * 4;
+        if (length <= 0 || length > expectedLength || start + length > buf.limit()) {
+            return null;
+        }
+        buf.position(start);
+        byte[] arr = getSectorAsByteArray(buf, length);
+        if (length < expectedLength) {
+            arr = CompressionUtil.decompress(arr, length, expectedLength);
+        }
+        final int[] checksums = new int[sectorCount - 1];
+        ByteBuffer.wrap(arr).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(checksums);
+        return checksums;
+    }
+
+    /**
+     * Checks a decrypted sector against its stored checksum. A checksum of 0
+     * means the sector is not checked.
+     *
+     * @param sector    the sector data as stored, after decryption
+     * @param index     the sector index
+     * @param checksums the sector checksums, may be null
+     * @throws JMpqException if the checksum does not match
+     */
+    private void checkSector(byte[] sector, int index, int[] checksums) throws JMpqException {
+        if (checksums != null && checksums[index] != 0 && checksums[index] != sectorChecksum(sector)) {
+            throw new JMpqException("Sector " + index + " of " + name + " fails its CRC check");
+        }
+    }
+
+    /**
+     * Calculates the checksum of a sector. This is Adler-32, but starting from
+     * 0 instead of 1.
+     *
+     * @param sector the sector data as stored, before encryption
+     * @return the checksum
+     */
+    static int sectorChecksum(byte[] sector) {
+        int s1 = 0;
+        int s2 = 0;
+        int i = 0;
+        while (i < sector.length) {
+            // largest block for which s2 can not overflow
+            final int end = Math.min(sector.length, i + 5552);
+            for (; i < end; i++) {
+                s1 += sector[i] & 0xFF;
+                s2 += s1;
+            }
+            s1 %= 65521;
+            s2 %= 65521;
+        }
+        return (s2 << 16) | s1;
+    }
+
     private void check(OutputStream writer) throws IOException {
         buf.position(0);
         byte[] arr = getSectorAsByteArray(buf, compressedSize);
@@ -199,16 +278,111 @@ public class MpqFile {
     }
 
     /**
-     * Write file and block.
+     * Sets the sizes and flags of the block of a copy written by
+     * {@link #writeFileAndBlock(Block, ByteBuffer)}. The copy has the size of
+     * the original data and does not depend on its new file position.
      *
-     * @param newBlock        the new block
+     * @param block    the block of the copied file
+     * @param newBlock the block of the copy
+     */
+    static void setCopyBlock(Block block, Block newBlock) {
+        newBlock.setNormalSize(block.getNormalSize());
+        newBlock.setCompressedSize(block.getCompressedSize());
+        if (block.getNormalSize() == 0) {
+            newBlock.setFlags(block.getFlags());
+        } else if (block.hasFlag(SINGLE_UNIT)) {
+            newBlock.setFlags(EXISTS | SINGLE_UNIT | (block.getFlags() & COMPRESSED));
+        } else if (block.hasFlag(COMPRESSED)) {
+            newBlock.setFlags(EXISTS | COMPRESSED | (block.getFlags() & SECTOR_CRC));
+        } else {
+            newBlock.setFlags(EXISTS);
+        }
+    }
+
+    /**
+     * Checks if the stored data of a file has to be re-encrypted when the
+     * file is moved, because its key depends on the file position.
+     *
+     * @param block      the block of the file
+     * @param newFilePos the new file position
+     * @return if the data has to be re-encrypted
+     */
+    static boolean needsRekey(Block block, long newFilePos) {
+        return block.hasFlag(ENCRYPTED) && block.hasFlag(ADJUSTED_ENCRYPTED) && block.getNormalSize() != 0
+                && (int) block.getFilePos() != (int) newFilePos;
+    }
+
+    /**
+     * Re-encrypts the stored data of a file for a new file position, in
+     * place. Sector offsets and compression stay as they are, so the file
+     * keeps its sizes and flags.
+     *
+     * @param data       the stored data, from position 0 to the compressed size
+     * @param block      the block of the file at its old position
+     * @param newFilePos the new file position
+     * @param sectorSize the sector size
+     * @param name       the file name
+     * @throws JMpqException if the sector offset table is damaged
+     */
+    static void rekey(ByteBuffer data, Block block, long newFilePos, int sectorSize, String name) throws JMpqException {
+        final MPQHashGenerator keyGen = MPQHashGenerator.getFileKeyGenerator();
+        keyGen.process(name.substring(name.lastIndexOf('\\') + 1));
+        final int fileKey = keyGen.getHash();
+        final int oldKey = (fileKey + (int) block.getFilePos()) ^ block.getNormalSize();
+        final int newKey = (fileKey + (int) newFilePos) ^ block.getNormalSize();
+        final int length = block.getCompressedSize();
+        if (block.hasFlag(SINGLE_UNIT)) {
+            rekeyRange(data, 0, length, oldKey, newKey);
+        } else if (block.hasFlag(COMPRESSED) || block.hasFlag(IMPLODED)) {
+            final int sectors = (int) ((Integer.toUnsignedLong(block.getNormalSize()) + sectorSize - 1) / sectorSize);
+            final int sotSize = (block.hasFlag(SECTOR_CRC) ? sectors + 2 : sectors + 1) * 4;
+            if (sotSize > length) {
+                throw new JMpqException("Sector offset table of " + name + " exceeds its block");
+            }
+            final ByteBuffer sot = ByteBuffer.allocate(sotSize).order(ByteOrder.LITTLE_ENDIAN);
+            sot.put(data.duplicate().position(0).limit(sotSize)).flip();
+            new MPQEncryption(oldKey - 1, true).processSingle(sot);
+            // the checksums after the last sector are not encrypted
+            for (int i = 0; i < sectors; i++) {
+                final int start = sot.getInt(i * 4);
+                final int end = sot.getInt(i * 4 + 4);
+                if (start < sotSize || end < start || end > length) {
+                    throw new JMpqException("Sector offset table of " + name + " is damaged");
+                }
+                rekeyRange(data, start, end - start, oldKey + i, newKey + i);
+            }
+            rekeyRange(data, 0, sotSize, oldKey - 1, newKey - 1);
+        } else {
+            for (int i = 0; (long) i * sectorSize < length; i++) {
+                final int start = i * sectorSize;
+                rekeyRange(data, start, Math.min(sectorSize, length - start), oldKey + i, newKey + i);
+            }
+        }
+    }
+
+    private static void rekeyRange(ByteBuffer data, int start, int length, int oldKey, int newKey) {
+        final ByteBuffer range = data.duplicate().position(start).limit(start + length).slice();
+        new MPQEncryption(oldKey, true).processSingle(range);
+        range.rewind();
+        new MPQEncryption(newKey, false).processSingle(range);
+    }
+
+    /**
+     * Copies the stored data of this file to the write buffer, at its
+     * position, and sets the sizes and flags of the block of the copy. The
+     * data is not compressed again. Encrypted data is decrypted, as its key
+     * depends on the file position, so the copy is never encrypted.
+     * <p>
+     * The editor copies files through its own channel based path. This
+     * method stays as supported API to copy a single file into a buffer.
+     *
+     * @param newBlock    the block of the copy, its file position is kept
      * @param writeBuffer the write buffer
+     * @throws JMpqException if a sector of the file is damaged
      */
-    public void writeFileAndBlock(Block newBlock, MappedByteBuffer writeBuffer) throws JMpqException {
-        newBlock.setNormalSize(normalSize);
-        newBlock.setCompressedSize(compressedSize);
+    public void writeFileAndBlock(Block newBlock, ByteBuffer writeBuffer) throws JMpqException {
+        setCopyBlock(block, newBlock);
         if (normalSize == 0) {
-            newBlock.setFlags(block.getFlags());
             return;
         }
         if ((block.hasFlag(SINGLE_UNIT)) || (!block.hasFlag(COMPRESSED))) {
@@ -218,29 +392,9 @@ public class MpqFile {
                 new MPQEncryption(baseKey, true).processSingle(ByteBuffer.wrap(arr));
             }
             writeBuffer.put(arr);
-
-            if (block.hasFlag(SINGLE_UNIT)) {
-                if ((block.getFlags() & COMPRESSED) == COMPRESSED) {
-                    newBlock.setFlags(EXISTS | SINGLE_UNIT | COMPRESSED);
-                } else {
-                    newBlock.setFlags(EXISTS | SINGLE_UNIT);
-                }
-            } else {
-                if ((block.getFlags() & COMPRESSED) == COMPRESSED) {
-                    newBlock.setFlags(EXISTS | COMPRESSED);
-                } else {
-                    newBlock.setFlags(EXISTS);
-                }
-            }
         } else {
-            buf.position(0);
-            byte[] sot = new byte[sectorCount * 4];
-            buf.get(sot);
-            if (isEncrypted) {
-                new MPQEncryption(baseKey - 1, true).processSingle(ByteBuffer.wrap(sot));
-            }
-            writeBuffer.put(sot);
-            ByteBuffer sotBuffer = ByteBuffer.wrap(sot).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer sotBuffer = readSectorOffsetTable();
+            writeBuffer.put(sotBuffer.array());
             int start = sotBuffer.getInt();
             int end = sotBuffer.getInt();
             for (int i = 0; i < sectorCount - 1; i++) {
@@ -258,10 +412,12 @@ public class MpqFile {
                     break;
                 }
             }
-            if ((block.getFlags() & COMPRESSED) == COMPRESSED) {
-                newBlock.setFlags(EXISTS | COMPRESSED);
-            } else {
-                newBlock.setFlags(EXISTS);
+            if (block.hasFlag(SECTOR_CRC)) {
+                // checksums are not encrypted and are copied as they are
+                start = sotBuffer.getInt((sectorCount - 1) * 4);
+                end = sotBuffer.getInt(sectorCount * 4);
+                buf.position(start);
+                writeBuffer.put(getSectorAsByteArray(buf, end - start));
             }
         }
     }
@@ -269,12 +425,13 @@ public class MpqFile {
     /**
      * Write file and block.
      *
-     * @param b                    the b
-     * @param buf                the buf
+     * @param file       the file
+     * @param b          the b
+     * @param buf        the buf
      * @param sectorSize the sector size
-     * @param recompress
+     * @param recompress the compression options
      */
-    public static void writeFileAndBlock(byte[] file, Block b, MappedByteBuffer buf, int sectorSize, RecompressOptions recompress) {
+    public static void writeFileAndBlock(byte[] file, Block b, ByteBuffer buf, int sectorSize, RecompressOptions recompress) {
         writeFileAndBlock(file, b, buf, sectorSize, "", recompress);
     }
 
@@ -287,87 +444,226 @@ public class MpqFile {
      * @param sectorSize the sector size
      * @param recompress
      */
-    public static void writeFileAndBlock(byte[] fileArr, Block b, MappedByteBuffer buf, int sectorSize, String pathlessName, RecompressOptions recompress) {
-        ByteBuffer fileBuf = ByteBuffer.wrap(fileArr);
-        fileBuf.position(0);
-        b.setNormalSize(fileArr.length);
+    public static void writeFileAndBlock(byte[] fileArr, Block b, ByteBuffer buf, int sectorSize, String pathlessName, RecompressOptions recompress) {
+        try {
+            writeFileAndBlock(fileArr.length, b, sectorsOf(fileArr, sectorSize), (data, offset) -> {
+                buf.position((int) offset);
+                buf.put(data);
+            }, sectorSize, pathlessName, recompress, (index, sector) -> compressSector(sector, recompress));
+        } catch (IOException e) {
+            // neither the array nor the buffer can fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Supplies the uncompressed sectors of a file, in order.
+     */
+    interface SectorSource {
+        /**
+         * @param index  the sector index
+         * @param length the sector length
+         * @return the uncompressed sector
+         * @throws IOException if the sector cannot be read
+         */
+        byte[] read(int index, int length) throws IOException;
+    }
+
+    /**
+     * Receives the written data of a file.
+     */
+    interface FileSink {
+        /**
+         * @param data   the data, written completely
+         * @param offset the offset relative to the file start
+         * @throws IOException if writing fails
+         */
+        void write(ByteBuffer data, long offset) throws IOException;
+    }
+
+    /**
+     * Supplies the compressed sectors of a file.
+     */
+    interface SectorCompressor {
+        /**
+         * @param index  the sector index
+         * @param sector the uncompressed sector
+         * @return the compressed sector without compression type, or null if
+         * compression failed
+         */
+        byte[] compress(int index, byte[] sector);
+    }
+
+    /**
+     * @param fileArr    the file content
+     * @param sectorSize the sector size
+     * @return a source of the sectors of the specified content
+     */
+    static SectorSource sectorsOf(byte[] fileArr, int sectorSize) {
+        return (index, length) -> Arrays.copyOfRange(fileArr, index * sectorSize, index * sectorSize + length);
+    }
+
+    /**
+     * Compresses a single sector.
+     *
+     * @param sector     the uncompressed sector
+     * @param recompress the compression options
+     * @return the compressed sector without compression type, or null if
+     * compression failed
+     */
+    static byte[] compressSector(byte[] sector, RecompressOptions recompress) {
+        return compressSector(sector, FileCompression.of(recompress), recompress);
+    }
+
+    /**
+     * Compresses a single sector with the compression selected for its file.
+     * Stored sectors are not compressed at all.
+     *
+     * @param sector      the uncompressed sector
+     * @param compression the compression of the file
+     * @param recompress  the compression options
+     * @return the compressed sector without compression type, or null if
+     * the sector is stored or compression failed
+     */
+    static byte[] compressSector(byte[] sector, FileCompression compression, RecompressOptions recompress) {
+        if (compression.getCodec() == FileCompression.Codec.STORE) {
+            return null;
+        }
+        try {
+            return CompressionUtil.compress(sector, compression, recompress.cacheDirectory);
+        } catch (ArrayIndexOutOfBoundsException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Write file and block sector by sector. Sectors are written in order
+     * after the space of the sector offset table, which is written last.
+     * Compressed files up to the single unit limit are written as a single
+     * sector without sector offset table.
+     *
+     * @param length       the file size
+     * @param b            the b
+     * @param source       supplies the uncompressed sectors
+     * @param sink         receives the written data
+     * @param sectorSize   the sector size
+     * @param pathlessName the file name used for encryption
+     * @param recompress   the compression options
+     * @param compressor   supplies the compressed sectors
+     * @throws IOException if reading a sector or writing fails
+     */
+    static void writeFileAndBlock(long length, Block b, SectorSource source, FileSink sink, int sectorSize, String pathlessName,
+                                  RecompressOptions recompress, SectorCompressor compressor) throws IOException {
+        b.setNormalSize((int) length);
         if (b.getFlags() == 0) {
-            if (fileArr.length > 0) {
+            if (length > 0) {
                 b.setFlags(EXISTS | COMPRESSED);
             } else {
                 b.setFlags(EXISTS);
                 return;
             }
         }
-        int sectorCount = (int) (Math.ceil(((double) fileArr.length / (double) sectorSize)) + 1);
-        ByteBuffer sot = ByteBuffer.allocate(sectorCount * 4);
+        final boolean singleUnit = b.hasFlag(COMPRESSED) && length <= Math.min(recompress.singleUnitLimit, sectorSize);
+        if (singleUnit) {
+            b.setFlags(b.getFlags() | SINGLE_UNIT);
+        } else if (recompress.sectorCrc && b.hasFlag(COMPRESSED)) {
+            b.setFlags(b.getFlags() | SECTOR_CRC);
+        }
+        int sectorCount = (int) ((length + sectorSize - 1) / sectorSize) + 1;
+        // with sector checksums the table has an extra entry for the end of the checksums
+        int sotSize = (b.hasFlag(SECTOR_CRC) ? sectorCount + 1 : sectorCount) * 4;
+        ByteBuffer sot = ByteBuffer.allocate(sotSize);
         sot.order(ByteOrder.LITTLE_ENDIAN);
-        sot.position(0);
-        sot.putInt(sectorCount * 4);
-        buf.position(sectorCount * 4);
-        int sotPos = sectorCount * 4;
-        byte[] temp = new byte[sectorSize];
-        for (int i = 0; i < sectorCount - 1; i++) {
-            if (fileBuf.position() + sectorSize > fileArr.length) {
-                temp = new byte[fileArr.length - fileBuf.position()];
+        sot.putInt(sotSize);
+        int sotPos = sotSize;
+        ByteBuffer checksums = null;
+        if (b.hasFlag(SECTOR_CRC)) {
+            checksums = ByteBuffer.allocate((sectorCount - 1) * 4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int bKey = 0;
+        if (b.hasFlag(ENCRYPTED)) {
+            final MPQHashGenerator keyGen = MPQHashGenerator.getFileKeyGenerator();
+            keyGen.process(pathlessName);
+            bKey = keyGen.getHash();
+            if (b.hasFlag(ADJUSTED_ENCRYPTED)) {
+                bKey = ((bKey + (int) b.getFilePos()) ^ b.getNormalSize());
             }
-            fileBuf.get(temp);
-            byte[] compSector = null;
-            try {
-                compSector = CompressionUtil.compress(temp, recompress);
-            } catch (ArrayIndexOutOfBoundsException ignored) {
+        }
+        if (singleUnit) {
+            // the whole file is a single sector without sector offset table
+            final byte[] sector = toStoredSector(source.read(0, (int) length), compressor, 0);
+            if (b.hasFlag(ENCRYPTED)) {
+                new MPQEncryption(bKey, false).processSingle(ByteBuffer.wrap(sector));
             }
-            if (compSector != null && compSector.length + 1 < temp.length) {
-                if (b.hasFlag(ENCRYPTED)) {
-                    final MPQHashGenerator keyGen = MPQHashGenerator.getFileKeyGenerator();
-                    keyGen.process(pathlessName);
-                    int bKey = keyGen.getHash();
-                    if (b.hasFlag(ADJUSTED_ENCRYPTED)) {
-                        bKey = ((bKey + b.getFilePos()) ^ b.getNormalSize());
-                    }
-
-                    if (new MPQEncryption(bKey + i, false).processFinal(
-                        ByteBuffer.wrap(DebugHelper.appendData((byte) 2, compSector), 0, compSector.length + 1), buf))
-                        throw new BufferOverflowException();
-                } else {
-                    // deflate compression indicator
-                    buf.put((byte) 2);
-                    buf.put(compSector);
-                }
-                sotPos += compSector.length + 1;
-            } else {
-                if (b.hasFlag(ENCRYPTED)) {
-                    final MPQHashGenerator keyGen = MPQHashGenerator.getFileKeyGenerator();
-                    keyGen.process(pathlessName);
-                    int bKey = keyGen.getHash();
-                    if (b.hasFlag(ADJUSTED_ENCRYPTED)) {
-                        bKey = ((bKey + b.getFilePos()) ^ b.getNormalSize());
-                    }
-                    if (new MPQEncryption(bKey + i, false).processFinal(ByteBuffer.wrap(temp), buf))
-                        throw new BufferOverflowException();
-                } else {
-                    buf.put(temp);
-                }
-                sotPos += temp.length;
+            sink.write(ByteBuffer.wrap(sector), 0);
+            b.setCompressedSize(sector.length);
+            return;
+        }
+        for (int i = 0; i < sectorCount - 1; i++) {
+            byte[] temp = source.read(i, (int) Math.min(sectorSize, length - (long) i * sectorSize));
+            final byte[] sector = toStoredSector(temp, compressor, i);
+            if (checksums != null) {
+                checksums.putInt(sectorChecksum(sector));
+            }
+            if (b.hasFlag(ENCRYPTED)) {
+                new MPQEncryption(bKey + i, false).processSingle(ByteBuffer.wrap(sector));
             }
+            sink.write(ByteBuffer.wrap(sector), sotPos);
+            sotPos += sector.length;
+            sot.putInt(sotPos);
+        }
+        if (checksums != null) {
+            // checksums are stored unencrypted after the last sector
+            checksums.flip();
+            sink.write(checksums, sotPos);
+            sotPos += checksums.capacity();
             sot.putInt(sotPos);
         }
         b.setCompressedSize(sotPos);
-        buf.position(0);
-        sot.position(0);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
+        sot.flip();
         if (b.hasFlag(ENCRYPTED)) {
-            final MPQHashGenerator keyGen = MPQHashGenerator.getFileKeyGenerator();
-            keyGen.process(pathlessName);
-            int bKey = keyGen.getHash();
-            if (b.hasFlag(ADJUSTED_ENCRYPTED)) {
-                bKey = ((bKey + b.getFilePos()) ^ b.getNormalSize());
-            }
-            if (new MPQEncryption(bKey - 1, false).processFinal(sot, buf))
-                throw new BufferOverflowException();
-        } else {
-            buf.put(sot);
+            new MPQEncryption(bKey - 1, false).processSingle(sot);
+            sot.rewind();
+        }
+        sink.write(sot, 0);
+    }
+
+    /**
+     * Gets the largest size a compressed file can be stored with, which is
+     * when no sector gets smaller by compression.
+     *
+     * @param length     the file size
+     * @param sectorSize the sector size
+     * @param recompress the compression options
+     * @return the stored size including the sector offset table and checksums
+     */
+    static long getMaxStoredSize(long length, int sectorSize, RecompressOptions recompress) {
+        if (length == 0 || length <= Math.min(recompress.singleUnitLimit, sectorSize)) {
+            return length;
+        }
+        long sectorCount = (length + sectorSize - 1) / sectorSize;
+        if (recompress.sectorCrc) {
+            return length + (sectorCount + 2) * 4 + sectorCount * 4;
+        }
+        return length + (sectorCount + 1) * 4;
+    }
+
+    /**
+     * Compresses a sector, keeping it uncompressed if compression does not
+     * make it smaller.
+     *
+     * @param temp       the uncompressed sector
+     * @param compressor supplies the compressed sector
+     * @param index      the sector index
+     * @return the sector as stored, before encryption
+     */
+    private static byte[] toStoredSector(byte[] temp, SectorCompressor compressor, int index) {
+        byte[] compSector = compressor.compress(index, temp);
+        if (compSector != null && compSector.length + 1 < temp.length) {
+            // deflate compression indicator
+            return DebugHelper.appendData((byte) 2, compSector);
         }
+        return temp;
     }
 
     /**
@@ -0,0 +1,18 @@
+package systems.crigges.jmpq3;
+
+/**
+ * Thrown when a {@link RebuildListener} cancels writing an archive. The
+ * archive is left as it was. Unless the archive was written to another
+ * channel, the editor stays open and can be closed again.
+ * <p>
+ * Files inserted from an {@code InputStream} or a channel can be read only
+ * once. If the cancelled build already read them, they have to be inserted
+ * again before the editor is closed again, otherwise closing fails.
+ */
+public class RebuildCancelledException extends JMpqException {
+    private static final long serialVersionUID = 1L;
+
+    public RebuildCancelledException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,59 @@
+package systems.crigges.jmpq3;
+
+/**
+ * Receives progress reports while an archive is written by one of the close
+ * methods of {@link JMpqEditor}, and can cancel the build.
+ * <p>
+ * All methods are called from the thread closing the editor. The progress
+ * object is updated as the build proceeds, so it should only be read during
+ * the calls.
+ *
+ * @see JMpqEditor#setRebuildListener(RebuildListener)
+ */
+public interface RebuildListener {
+    /**
+     * Called when the build moves on to another phase. Copied and compressed
+     * files are written in layout order, so these phases can alternate.
+     *
+     * @param progress the progress of the build
+     */
+    default void phaseStarted(RebuildProgress progress) {
+    }
+
+    /**
+     * Called before a file is copied or compressed.
+     *
+     * @param progress the progress of the build, with the file as current file
+     */
+    default void fileStarted(RebuildProgress progress) {
+    }
+
+    /**
+     * Called after a file was written.
+     *
+     * @param progress the progress of the build, including the file
+     */
+    default void fileFinished(RebuildProgress progress) {
+    }
+
+    /**
+     * Called once the tables were written.
+     *
+     * @param progress the final progress of the build
+     */
+    default void finished(RebuildProgress progress) {
+    }
+
+    /**
+     * Polled between files. Once it returns true, the build stops with a
+     * {@link RebuildCancelledException} and the archive is left as it was.
+     * Commits in place stop only before they start writing to the archive.
+     * Files inserted from a stream or channel may have been read by then,
+     * see {@link RebuildCancelledException}.
+     *
+     * @return true to cancel the build
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+package systems.crigges.jmpq3;
+
+import systems.crigges.jmpq3.BlockTable.Block;
+import systems.crigges.jmpq3.compression.RecompressOptions;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plan of a full rebuild: the files in layout order, which of them are
+ * copied as they are, the table sizes and the projected archive size.
+ * Creating a plan reads and writes nothing, so it can be used to estimate a
+ * build before running it.
+ * <p>
+ * New and recompressed files are projected at their size without
+ * compression, so the projected size is an upper bound. Copied files and the
+ * tables are projected exactly.
+ *
+ * @see JMpqEditor#planRebuild(boolean, RecompressOptions)
+ * @see JMpqEditor#close(RebuildPlan)
+ */
+public class RebuildPlan {
+    private final JMpqEditor editor;
+    private final int editCount;
+    private final boolean buildListfile;
+    private final RecompressOptions options;
+    private final List<String> existingFiles;
+    private final List<String> files;
+    private final Map<String, Block> copiedBlocks;
+    private final List<String> recompressedFiles;
+    private final int hashTableSize;
+    private final int blockTableSize;
+    private final long copyBytes;
+    private final long compressBytes;
+    private final long projectedSize;
+
+    RebuildPlan(JMpqEditor editor, int editCount, boolean buildListfile, RecompressOptions options, List<String> existingFiles,
+                List<String> files, Map<String, Block> copiedBlocks, List<String> recompressedFiles, int hashTableSize,
+                int blockTableSize, long copyBytes, long compressBytes, long projectedSize) {
+        this.editor = editor;
+        this.editCount = editCount;
+        this.buildListfile = buildListfile;
+        this.options = options;
+        this.existingFiles = Collections.unmodifiableList(existingFiles);
+        this.files = Collections.unmodifiableList(files);
+        this.copiedBlocks = Collections.unmodifiableMap(copiedBlocks);
+        this.recompressedFiles = Collections.unmodifiableList(recompressedFiles);
+        this.hashTableSize = hashTableSize;
+        this.blockTableSize = blockTableSize;
+        this.copyBytes = copyBytes;
+        this.compressBytes = compressBytes;
+        this.projectedSize = projectedSize;
+    }
+
+    /**
+     * Gets the hash table size for the specified number of files. The table
+     * has room for the listfile and the attributes and is at most half full.
+     *
+     * @param fileCount the number of files
+     * @return the number of hash table entries, a power of two
+     */
+    static int getHashTableSize(int fileCount) {
+        int target = fileCount + 2;
+        int current = 2;
+        while (current < target) {
+            current *= 2;
+        }
+        return current * 2;
+    }
+
+    /**
+     * @return the files in the order they are written, without the listfile
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
+    /**
+     * @param name a file of the plan
+     * @return true if the file is copied as it is, false if it is compressed
+     */
+    public boolean isCopied(String name) {
+        return copiedBlocks.containsKey(name);
+    }
+
+    /**
+     * @return the existing files which are extracted and compressed again
+     */
+    public List<String> getRecompressedFiles() {
+        return recompressedFiles;
+    }
+
+    public int getHashTableSize() {
+        return hashTableSize;
+    }
+
+    /**
+     * @return the number of block table entries, files sharing data may
+     * reduce it
+     */
+    public int getBlockTableSize() {
+        return blockTableSize;
+    }
+
+    /**
+     * @return the stored bytes of the copied files
+     */
+    public long getCopyBytes() {
+        return copyBytes;
+    }
+
+    /**
+     * @return the uncompressed bytes of the compressed files and the listfile
+     */
+    public long getCompressBytes() {
+        return compressBytes;
+    }
+
+    /**
+     * @return the upper bound of the archive file size, including data in
+     * front of the mpq which is kept
+     */
+    public long getProjectedSize() {
+        return projectedSize;
+    }
+
+    /**
+     * Estimates the duration of the build from the throughput of earlier
+     * builds, as reported by {@link RebuildProgress#getBytesPerSecond()}.
+     *
+     * @param copyBytesPerSecond     the throughput of copying existing files
+     * @param compressBytesPerSecond the throughput of compressing files
+     * @param unit                   the unit of the result
+     * @return the estimated duration
+     */
+    public long estimateTime(double copyBytesPerSecond, double compressBytesPerSecond, TimeUnit unit) {
+        double seconds = copyBytes / copyBytesPerSecond + compressBytes / compressBytesPerSecond;
+        return unit.convert((long) (seconds * 1e9), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param editor    the editor executing the plan
+     * @param editCount the current edit count of the editor
+     * @return true if the plan was made by the editor and no file changed since
+     */
+    boolean isCurrent(JMpqEditor editor, int editCount) {
+        return this.editor == editor && this.editCount == editCount;
+    }
+
+    boolean isBuildListfile() {
+        return buildListfile;
+    }
+
+    RecompressOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the existing files in archive order
+     */
+    List<String> getExistingFiles() {
+        return existingFiles;
+    }
+
+    /**
+     * @return the blocks of the copied files by name
+     */
+    Map<String, Block> getCopiedBlocks() {
+        return copiedBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return files.size() + " files, " + copyBytes + " bytes copied, " + compressBytes + " bytes compressed, at most "
+            + projectedSize + " bytes";
+    }
+}
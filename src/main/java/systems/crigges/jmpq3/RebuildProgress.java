@@ -0,0 +1,121 @@
+package systems.crigges.jmpq3;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress of an archive build, reported to a {@link RebuildListener}.
+ * <p>
+ * Bytes count the stored size of copied files and the uncompressed size of
+ * compressed files, which is the data the build has to move.
+ */
+public class RebuildProgress {
+    /**
+     * The phases of a build.
+     */
+    public enum Phase {
+        /**
+         * Existing files are copied as they are.
+         */
+        COPY_EXISTING,
+        /**
+         * New and recompressed files are compressed.
+         */
+        COMPRESS_NEW,
+        /**
+         * The listfile and the tables are written.
+         */
+        TABLES
+    }
+
+    private final long startTime = System.nanoTime();
+    private final int fileCount;
+    private final long byteCount;
+    private Phase phase;
+    private String currentFile;
+    private int filesDone;
+    private long bytesDone;
+
+    RebuildProgress(int fileCount, long byteCount) {
+        this.fileCount = fileCount;
+        this.byteCount = byteCount;
+    }
+
+    /**
+     * @return the current phase, null before the first file
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the file being written, null outside of file phases
+     */
+    public String getCurrentFile() {
+        return currentFile;
+    }
+
+    public int getFilesDone() {
+        return filesDone;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @param unit the unit of the result
+     * @return the time since the build started
+     */
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+    }
+
+    public double getBytesPerSecond() {
+        return bytesDone / getElapsedSeconds();
+    }
+
+    public double getFilesPerSecond() {
+        return filesDone / getElapsedSeconds();
+    }
+
+    private double getElapsedSeconds() {
+        return Math.max(System.nanoTime() - startTime, 1) / 1e9;
+    }
+
+    /**
+     * @param phase the new phase
+     * @return true if the phase changed
+     */
+    boolean setPhase(Phase phase) {
+        if (this.phase == phase) {
+            return false;
+        }
+        this.phase = phase;
+        return true;
+    }
+
+    void setCurrentFile(String currentFile) {
+        this.currentFile = currentFile;
+    }
+
+    /**
+     * @param bytes the bytes of the finished file
+     */
+    void fileDone(long bytes) {
+        filesDone++;
+        bytesDone += bytes;
+    }
+
+    @Override
+    public String toString() {
+        return phase + " " + filesDone + "/" + fileCount + " files, " + bytesDone + "/" + byteCount + " bytes";
+    }
+}
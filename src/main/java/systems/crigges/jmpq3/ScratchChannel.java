@@ -0,0 +1,127 @@
+package systems.crigges.jmpq3;
+
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Channel for intermediate data, which is held in memory up to a limit. A
+ * write which would grow the data past the limit moves it to a scratch
+ * file first, which is deleted when the channel is closed.
+ */
+class ScratchChannel implements SeekableByteChannel {
+    private final Path directory;
+    private final long memoryLimit;
+    private SeekableByteChannel channel = new SeekableInMemoryByteChannel();
+    private Path scratchPath;
+
+    /**
+     * @param directory   the directory of the scratch file, or null for the
+     *                    default temp directory
+     * @param memoryLimit the bytes to hold in memory, limited to the size of
+     *                    an array
+     */
+    ScratchChannel(Path directory, long memoryLimit) {
+        this.directory = directory;
+        this.memoryLimit = Math.min(memoryLimit, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * @return whether the data was moved to a scratch file
+     */
+    boolean isSpilled() {
+        return scratchPath != null;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (scratchPath == null && channel.position() + src.remaining() > memoryLimit) {
+            spill();
+        }
+        return channel.write(src);
+    }
+
+    /**
+     * Moves the data to a scratch file.
+     *
+     * @throws IOException if the scratch file cannot be written
+     */
+    private void spill() throws IOException {
+        final Path path = directory != null ? Files.createTempFile(directory, "jmpq", ".scratch")
+            : Files.createTempFile("jmpq", ".scratch");
+        path.toFile().deleteOnExit();
+        final SeekableInMemoryByteChannel memory = (SeekableInMemoryByteChannel) channel;
+        try {
+            final FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                final ByteBuffer data = ByteBuffer.wrap(memory.array(), 0, (int) memory.size());
+                while (data.hasRemaining()) {
+                    file.write(data);
+                }
+                file.position(memory.position());
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            channel = file;
+            scratchPath = path;
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        return channel.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (scratchPath == null && newPosition > memoryLimit) {
+            spill();
+        }
+        channel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Closes the channel and deletes the scratch file.
+     *
+     * @throws IOException if the scratch file cannot be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (scratchPath != null) {
+            Files.deleteIfExists(scratchPath);
+        }
+    }
+}
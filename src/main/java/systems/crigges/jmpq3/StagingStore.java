@@ -0,0 +1,270 @@
+package systems.crigges.jmpq3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The contents of the files to insert, in insertion order. Names are
+ * compared like the archive compares them, by their file key, so any
+ * spelling of a name finds its content.
+ * <p>
+ * Content held in memory counts against a memory limit. Above the limit the
+ * oldest content in memory is moved to a scratch file in the temp directory
+ * of the editor, which is deleted when the store is closed. The store hands out its own sources, which keep
+ * reading the content wherever it was moved to.
+ */
+class StagingStore implements Iterable<String>, Closeable {
+    private final LinkedHashMap<Long, String> names = new LinkedHashMap<>();
+    private final Map<Long, Staged> sources = new HashMap<>();
+    /**
+     * Content which may still be in memory, oldest first.
+     */
+    private final ArrayDeque<Staged> inMemory = new ArrayDeque<>();
+    private final Supplier<Path> directory;
+    private long memoryLimit = Long.MAX_VALUE;
+    private long memorySize;
+    private Path scratchPath;
+    private FileChannel scratch;
+
+    /**
+     * @param directory supplies the directory of the scratch file when it is
+     *                  created, null for the default temp directory
+     */
+    StagingStore(Supplier<Path> directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Stages the content of a file, replacing content staged under the same
+     * name. A file keeps its position in the order when it is replaced.
+     *
+     * @param name   the file name
+     * @param source the content, or a source handed out by this store
+     * @return the source handed out for the content
+     */
+    FileSource put(String name, FileSource source) {
+        final long key = HashTable.calculateFileKey(name);
+        final Staged old = sources.get(key);
+        if (old != null) {
+            memorySize -= old.memorySize();
+        }
+        final Staged staged = source instanceof Staged ? (Staged) source : new Staged(source);
+        staged.key = key;
+        names.put(key, name);
+        sources.put(key, staged);
+        final long size = staged.memorySize();
+        if (size > 0) {
+            memorySize += size;
+            inMemory.add(staged);
+        }
+        return staged;
+    }
+
+    /**
+     * @param name the file name
+     * @return the staged content, or null if the file is not staged
+     */
+    FileSource get(String name) {
+        return sources.get(HashTable.calculateFileKey(name));
+    }
+
+    boolean contains(String name) {
+        return sources.containsKey(HashTable.calculateFileKey(name));
+    }
+
+    /**
+     * @param name the file name
+     * @return the removed content, or null if the file was not staged
+     */
+    FileSource remove(String name) {
+        final long key = HashTable.calculateFileKey(name);
+        final Staged staged = sources.remove(key);
+        if (staged != null) {
+            names.remove(key);
+            memorySize -= staged.memorySize();
+        }
+        return staged;
+    }
+
+    boolean isEmpty() {
+        return names.isEmpty();
+    }
+
+    /**
+     * @return the names of the staged files in insertion order
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return names.values().iterator();
+    }
+
+    /**
+     * @return the bytes of staged content held in memory
+     */
+    long getMemorySize() {
+        return memorySize;
+    }
+
+    /**
+     * @return the bytes of content to keep in memory before spilling
+     */
+    long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @param memoryLimit the bytes of content to keep in memory before spilling
+     */
+    void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Moves the oldest content held in memory to the scratch file until the
+     * memory limit is met.
+     *
+     * @throws IOException if the scratch file cannot be written, the content
+     *                     which was not moved stays in memory
+     */
+    void spill() throws IOException {
+        while (memorySize > memoryLimit && !inMemory.isEmpty()) {
+            final Staged staged = inMemory.peek();
+            if (sources.get(staged.key) == staged && staged.memorySize() > 0) {
+                final long size = staged.memorySize();
+                staged.content = write(staged.content);
+                memorySize -= size;
+            }
+            inMemory.poll();
+        }
+    }
+
+    /**
+     * Appends content to the scratch file.
+     *
+     * @param content the content
+     * @return a source reading the content from the scratch file
+     * @throws IOException if writing fails
+     */
+    private FileSource write(FileSource content) throws IOException {
+        if (scratch == null) {
+            final Path dir = directory.get();
+            scratchPath = dir != null ? Files.createTempFile(dir, "jmpq", ".staging") : Files.createTempFile("jmpq", ".staging");
+            scratchPath.toFile().deleteOnExit();
+            scratch = FileChannel.open(scratchPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        final long offset = scratch.size();
+        long length = 0;
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (ReadableByteChannel in = content.open()) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    length += scratch.write(buffer, offset + length);
+                }
+                buffer.clear();
+            }
+        }
+        return slice(offset, length);
+    }
+
+    /**
+     * @param offset the position of the content in the scratch file
+     * @param size   the content size
+     * @return a source reading the content, independent of other readers
+     */
+    private FileSource slice(long offset, long size) {
+        final FileChannel channel = scratch;
+        return new FileSource() {
+            @Override
+            long size() {
+                return size;
+            }
+
+            @Override
+            ReadableByteChannel open() {
+                return new ReadableByteChannel() {
+                    private long position = offset;
+                    private boolean open = true;
+
+                    @Override
+                    public int read(ByteBuffer dst) throws IOException {
+                        if (position >= offset + size) {
+                            return -1;
+                        }
+                        final ByteBuffer part = dst.duplicate();
+                        part.limit(part.position() + (int) Math.min(dst.remaining(), offset + size - position));
+                        final int read = channel.read(part, position);
+                        if (read > 0) {
+                            dst.position(dst.position() + read);
+                            position += read;
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return open;
+                    }
+
+                    @Override
+                    public void close() {
+                        open = false;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Deletes the scratch file. Spilled content can no longer be read.
+     *
+     * @throws IOException if the scratch file cannot be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        if (scratch != null) {
+            scratch.close();
+            Files.deleteIfExists(scratchPath);
+            scratch = null;
+        }
+    }
+
+    /**
+     * Staged content, read from wherever it currently is.
+     */
+    private static final class Staged extends FileSource {
+        private FileSource content;
+        private long key;
+
+        Staged(FileSource content) {
+            this.content = content;
+        }
+
+        @Override
+        long size() throws IOException {
+            return content.size();
+        }
+
+        @Override
+        ReadableByteChannel open() throws IOException {
+            return content.open();
+        }
+
+        @Override
+        long memorySize() {
+            return content.memorySize();
+        }
+    }
+}
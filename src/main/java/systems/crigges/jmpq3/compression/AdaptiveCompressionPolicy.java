@@ -0,0 +1,158 @@
+package systems.crigges.jmpq3.compression;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default compression policy. Checks in order:
+ * <ol>
+ * <li>an explicit rule for the file extension,</li>
+ * <li>the entropy of the first sector, storing data which is unlikely to
+ * compress without trying,</li>
+ * <li>the file size and the time spent compressing so far, falling back from
+ * zopfli to deflate for large files and once the time budget is used up.</li>
+ * </ol>
+ * Existing .wav files are copied as they are by default.
+ * <p>
+ * The time budget covers all archives built with the same policy instance.
+ * With a budget the output depends on timing, so builds are no longer
+ * reproducible.
+ */
+public class AdaptiveCompressionPolicy implements CompressionPolicy {
+    private final Set<String> keptExtensions = ConcurrentHashMap.newKeySet();
+    private final Map<String, FileCompression> rules = new ConcurrentHashMap<>();
+    private volatile double storeEntropy = 7.9;
+    private volatile long zopfliSizeLimit = Long.MAX_VALUE;
+    private volatile long timeBudget = Long.MAX_VALUE;
+    private final AtomicLong timeSpent = new AtomicLong();
+
+    public AdaptiveCompressionPolicy() {
+        keptExtensions.add(".wav");
+    }
+
+    /**
+     * Whether or not existing files with the specified extension are copied
+     * as they are instead of being recompressed.
+     *
+     * @param extension the extension including the dot, such as ".wav"
+     * @param keep
+     */
+    public void setKeepExisting(String extension, boolean keep) {
+        if (keep) {
+            keptExtensions.add(extension.toLowerCase(Locale.ROOT));
+        } else {
+            keptExtensions.remove(extension.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Sets the compression of all files with the specified extension.
+     *
+     * @param extension   the extension including the dot, such as ".mp3"
+     * @param compression the compression, or null to remove the rule
+     */
+    public void setRule(String extension, FileCompression compression) {
+        if (compression == null) {
+            rules.remove(extension.toLowerCase(Locale.ROOT));
+        } else {
+            rules.put(extension.toLowerCase(Locale.ROOT), compression);
+        }
+    }
+
+    /**
+     * Sets the entropy of the first sector, in bits per byte, from which a
+     * file is stored without compression. Values above 8 disable the check.
+     *
+     * @param storeEntropy
+     */
+    public void setStoreEntropy(double storeEntropy) {
+        this.storeEntropy = storeEntropy;
+    }
+
+    /**
+     * Sets the size above which files are compressed with deflate instead of
+     * zopfli.
+     *
+     * @param zopfliSizeLimit
+     */
+    public void setZopfliSizeLimit(long zopfliSizeLimit) {
+        this.zopfliSizeLimit = zopfliSizeLimit;
+    }
+
+    /**
+     * Sets the compression time after which files are compressed with
+     * deflate instead of zopfli. The time is summed over all threads.
+     *
+     * @param time the time budget
+     * @param unit the unit of the time budget
+     */
+    public void setTimeBudget(long time, TimeUnit unit) {
+        this.timeBudget = unit.toNanos(time);
+    }
+
+    @Override
+    public boolean recompressExisting(String name, long size) {
+        return !keptExtensions.contains(getExtension(name));
+    }
+
+    @Override
+    public FileCompression select(String name, long size, byte[] sample, RecompressOptions options) {
+        FileCompression rule = rules.get(getExtension(name));
+        if (rule != null) {
+            return rule;
+        }
+        if (getEntropy(sample) >= storeEntropy) {
+            return FileCompression.STORE;
+        }
+        if (options.useZopfli && size <= zopfliSizeLimit && timeSpent.get() < timeBudget) {
+            return FileCompression.zopfli(options.iterations);
+        }
+        return FileCompression.DEFLATE;
+    }
+
+    @Override
+    public void compressed(FileCompression compression, int length, long nanos) {
+        timeSpent.addAndGet(nanos);
+    }
+
+    /**
+     * @param name the file name
+     * @return the lower case extension including the dot, or an empty string
+     */
+    private static String getExtension(String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('\\')) {
+            return "";
+        }
+        return name.substring(dot).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Calculates the Shannon entropy of the byte values. Short samples can
+     * not reach high values, so small files are never considered random.
+     *
+     * @param sample the data
+     * @return the entropy in bits per byte
+     */
+    static double getEntropy(byte[] sample) {
+        if (sample.length == 0) {
+            return 0;
+        }
+        final int[] counts = new int[256];
+        for (byte b : sample) {
+            counts[b & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                final double p = (double) count / sample.length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
@@ -0,0 +1,159 @@
+package systems.crigges.jmpq3.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Directory of compressed sectors, kept across rebuilds.
+ * <p>
+ * Each entry is a file named after a hash of the uncompressed sector and the
+ * codec options, holding the compressed sector. Entries are written to a
+ * temporary file first and moved into place, so concurrent writers and
+ * interrupted builds never leave a partial entry. The cache is an
+ * optimization only, entries which cannot be read or written are compressed
+ * again.
+ * <p>
+ * The compressed sector is preceded by its length, its CRC-32 and the
+ * Adler-32 of the uncompressed sector. An entry is only used if all of
+ * them match, so an entry damaged on disk or by another tool counts as not
+ * cached instead of ending up in an archive.
+ */
+class CompressionCache {
+    /**
+     * Changes whenever the compressed output for the same options changes.
+     */
+    private static final String VERSION = "2";
+    /**
+     * Size of the entry header: the compressed length, its CRC-32 and the
+     * Adler-32 of the uncompressed sector.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    private CompressionCache() {
+    }
+
+    /**
+     * Gets the compressed sector from the cache, compressing and caching it
+     * if it is not cached yet.
+     *
+     * @param directory   the cache directory
+     * @param sector      the uncompressed sector
+     * @param compression the compression
+     * @param compressor  compresses the sector
+     * @return the compressed sector, or null if compression failed
+     */
+    static byte[] compress(Path directory, byte[] sector, FileCompression compression, Compressor compressor) {
+        final String key = key(sector, compression);
+        final Path entry = directory.resolve(key.substring(0, 2)).resolve(key);
+        try {
+            final byte[] cached = read(Files.readAllBytes(entry), sector);
+            if (cached != null) {
+                return cached;
+            }
+        } catch (IOException ignored) {
+            // not cached yet
+        }
+        final byte[] compressed = compressor.compress(sector, compression);
+        if (compressed == null) {
+            return null;
+        }
+        try {
+            Files.createDirectories(entry.getParent());
+            final Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            try {
+                Files.write(temp, toEntry(compressed, sector));
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException | UnsupportedOperationException ignored) {
+            // the sector is compressed again next time
+        }
+        return compressed;
+    }
+
+    /**
+     * @param entry  the content of a cache entry
+     * @param sector the uncompressed sector
+     * @return the compressed sector, or null if the entry is damaged or does
+     * not belong to the sector
+     */
+    private static byte[] read(byte[] entry, byte[] sector) {
+        if (entry.length < HEADER_SIZE) {
+            return null;
+        }
+        final ByteBuffer header = ByteBuffer.wrap(entry, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final int length = header.getInt();
+        if (length <= 0 || length != entry.length - HEADER_SIZE) {
+            return null;
+        }
+        final byte[] compressed = Arrays.copyOfRange(entry, HEADER_SIZE, entry.length);
+        if (header.getInt() != crc(compressed) || header.getInt() != adler(sector)) {
+            return null;
+        }
+        return compressed;
+    }
+
+    /**
+     * @param compressed the compressed sector
+     * @param sector     the uncompressed sector
+     * @return the content of the cache entry
+     */
+    private static byte[] toEntry(byte[] compressed, byte[] sector) {
+        final ByteBuffer entry = ByteBuffer.allocate(HEADER_SIZE + compressed.length).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putInt(compressed.length);
+        entry.putInt(crc(compressed));
+        entry.putInt(adler(sector));
+        entry.put(compressed);
+        return entry.array();
+    }
+
+    private static int crc(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static int adler(byte[] data) {
+        final Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        return (int) adler.getValue();
+    }
+
+    /**
+     * @param sector      the uncompressed sector
+     * @param compression the compression
+     * @return the name of the cache entry
+     */
+    private static String key(byte[] sector, FileCompression compression) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final String codec = VERSION + ":" + compression + ":" + sector.length + ":";
+        digest.update(codec.getBytes(StandardCharsets.US_ASCII));
+        digest.update(sector);
+        final StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Compresses a sector which is not cached.
+     */
+    interface Compressor {
+        byte[] compress(byte[] sector, FileCompression compression);
+    }
+}
@@ -0,0 +1,46 @@
+package systems.crigges.jmpq3.compression;
+
+/**
+ * Decides per file how it is compressed when an archive is rebuilt with
+ * recompression.
+ * <p>
+ * Policies are called from the threads writing and compressing the archive,
+ * so implementations must be thread safe.
+ *
+ * @see RecompressOptions#policy
+ */
+public interface CompressionPolicy {
+    /**
+     * Decides whether an existing file is recompressed or copied as it is.
+     * This is decided by name and size, because the content is only known
+     * after decompressing the file.
+     *
+     * @param name the file name
+     * @param size the uncompressed file size
+     * @return true to recompress the file
+     */
+    default boolean recompressExisting(String name, long size) {
+        return true;
+    }
+
+    /**
+     * Selects the compression of a file.
+     *
+     * @param name    the file name
+     * @param size    the uncompressed file size
+     * @param sample  the first sector of the file, empty for empty files
+     * @param options the compression options of the build
+     * @return the compression of the file
+     */
+    FileCompression select(String name, long size, byte[] sample, RecompressOptions options);
+
+    /**
+     * Called after a sector was compressed.
+     *
+     * @param compression the compression of the sector
+     * @param length      the uncompressed sector length
+     * @param nanos       the time spent compressing the sector
+     */
+    default void compressed(FileCompression compression, int length, long nanos) {
+    }
+}
@@ -3,15 +3,17 @@ package systems.crigges.jmpq3.compression;
 import systems.crigges.jmpq3.JMpqException;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.Arrays;
 
 /**
  * Created by Frotty on 30.04.2017.
  */
 public class CompressionUtil {
-    private static ADPCM ADPCM;
-    private static Huffman huffman;
-    private static ZopfliHelper zopfli;
+    // codecs keep state between calls, so each thread gets its own
+    private static final ThreadLocal<ADPCM> ADPCM_CODEC = ThreadLocal.withInitial(() -> new ADPCM(2));
+    private static final ThreadLocal<Huffman> HUFFMAN = ThreadLocal.withInitial(Huffman::new);
+    private static final ThreadLocal<ZopfliHelper> ZOPFLI = ThreadLocal.withInitial(ZopfliHelper::new);
     /* Masks for Decompression Type 2 */
     private static final byte FLAG_HUFFMAN = 0x01;
     public static final byte FLAG_DEFLATE = 0x02;
@@ -107,14 +109,30 @@ public class CompressionUtil {
 
     // Update your compress method to use the optimized version:
     public static byte[] compress(byte[] temp, RecompressOptions recompress) {
-        if (!recompress.recompress) {
+        return compress(temp, FileCompression.of(recompress), recompress.cacheDirectory);
+    }
+
+    /**
+     * Compresses a sector with the specified compression.
+     *
+     * @param temp           the sector
+     * @param compression    the compression
+     * @param cacheDirectory the directory of cached sectors, or null
+     * @return the compressed sector without compression type
+     */
+    public static byte[] compress(byte[] temp, FileCompression compression, Path cacheDirectory) {
+        if (compression.getCodec() == FileCompression.Codec.STORE) {
             return zlibStoreLevel0(temp); // Use the fastest version
         }
-        if (recompress.recompress && recompress.useZopfli && zopfli == null) {
-            zopfli = new ZopfliHelper();
+        if (cacheDirectory != null) {
+            return CompressionCache.compress(cacheDirectory, temp, compression, CompressionUtil::deflate);
         }
-        return recompress.useZopfli ? zopfli.deflate(temp, recompress.iterations)
-            : JzLibHelper.deflate(temp, recompress.recompress);
+        return deflate(temp, compression);
+    }
+
+    private static byte[] deflate(byte[] temp, FileCompression compression) {
+        return compression.getCodec() == FileCompression.Codec.ZOPFLI ? ZOPFLI.get().deflate(temp, compression.getIterations())
+            : JzLibHelper.deflate(temp, true);
     }
 
     public static byte[] decompress(byte[] sector, int compressedSize, int uncompressedSize) throws JMpqException {
@@ -154,31 +172,22 @@ public class CompressionUtil {
             }
 
             if (isHuffmanCompressed) {
-                if (huffman == null) {
-                    huffman = new Huffman();
-                }
                 (flip ? in : out).clear();
-                huffman.Decompress(flip ? out : in, flip ? in : out);
+                HUFFMAN.get().Decompress(flip ? out : in, flip ? in : out);
                 out.limit(out.position());
                 in.position(0);
                 out.position(0);
                 flip = !flip;
             }
             if (((compressionType & FLAG_ADPCM2C) != 0)) {
-                if (ADPCM == null) {
-                    ADPCM = new ADPCM(2);
-                }
                 ByteBuffer newOut = ByteBuffer.wrap(new byte[uncompressedSize]);
-                ADPCM.decompress(flip ? out : in, newOut, 2);
+                ADPCM_CODEC.get().decompress(flip ? out : in, newOut, 2);
                 (flip ? out : in).position(0);
                 return newOut.array();
             }
             if (((compressionType & FLAG_ADPCM1C) != 0)) {
-                if (ADPCM == null) {
-                    ADPCM = new ADPCM(2);
-                }
                 ByteBuffer newOut = ByteBuffer.wrap(new byte[uncompressedSize]);
-                ADPCM.decompress(flip ? out : in, newOut, 1);
+                ADPCM_CODEC.get().decompress(flip ? out : in, newOut, 1);
                 (flip ? out : in).position(0);
                 return newOut.array();
             }
@@ -0,0 +1,79 @@
+package systems.crigges.jmpq3.compression;
+
+/**
+ * The codec and effort used to compress the sectors of a file.
+ */
+public final class FileCompression {
+    /**
+     * Sectors are stored without trying to compress them.
+     */
+    public static final FileCompression STORE = new FileCompression(Codec.STORE, 0);
+    /**
+     * Sectors are compressed with the best jzlib level.
+     */
+    public static final FileCompression DEFLATE = new FileCompression(Codec.DEFLATE, 0);
+
+    /**
+     * The available codecs.
+     */
+    public enum Codec {
+        STORE, DEFLATE, ZOPFLI
+    }
+
+    private final Codec codec;
+    private final int iterations;
+
+    private FileCompression(Codec codec, int iterations) {
+        this.codec = codec;
+        this.iterations = iterations;
+    }
+
+    /**
+     * @param iterations the zopfli iterations
+     * @return compression with zopfli
+     */
+    public static FileCompression zopfli(int iterations) {
+        return new FileCompression(Codec.ZOPFLI, iterations);
+    }
+
+    /**
+     * @param options the compression options
+     * @return the compression selected by the global options
+     */
+    public static FileCompression of(RecompressOptions options) {
+        if (!options.recompress) {
+            return STORE;
+        }
+        return options.useZopfli ? zopfli(options.iterations) : DEFLATE;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the zopfli iterations, 0 for other codecs
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FileCompression)) {
+            return false;
+        }
+        FileCompression other = (FileCompression) o;
+        return codec == other.codec && iterations == other.iterations;
+    }
+
+    @Override
+    public int hashCode() {
+        return codec.hashCode() * 31 + iterations;
+    }
+
+    @Override
+    public String toString() {
+        return codec == Codec.ZOPFLI ? "zopfli:" + iterations : codec.name().toLowerCase();
+    }
+}
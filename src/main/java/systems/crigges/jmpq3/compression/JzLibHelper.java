@@ -9,50 +9,58 @@ import java.util.Arrays;
 
 /**
  * Faster jzlib helper tuned for level 0 (no compression).
- * NOTE: Not thread-safe.
+ * Inflate and deflate streams are kept per thread, so it is thread-safe.
  */
 public class JzLibHelper {
     // If your consumer accepts RAW DEFLATE (no zlib header/Adler32),
     // set this to true for level 0 to shave a bit more overhead.
     private static final boolean RAW_NOWRAP_FOR_LEVEL0 = false;
 
-    private static final Inflater INF = new Inflater();
-    private static Deflater DEF;
-    private static int currentLevel = Integer.MIN_VALUE;
-    private static boolean currentNowrap = false;
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
 
-    private static byte[] comp = new byte[1024];
+    /**
+     * Deflate stream and output buffer, reused by the calls of one thread.
+     */
+    private static final class DeflateContext {
+        private Deflater def;
+        private int currentLevel = Integer.MIN_VALUE;
+        private boolean currentNowrap = false;
+        private byte[] comp = new byte[1024];
+    }
+
+    private static final ThreadLocal<DeflateContext> DEFLATE = ThreadLocal.withInitial(DeflateContext::new);
 
     public static byte[] inflate(byte[] bytes, int offset, int uncompSize) {
         byte[] out = new byte[uncompSize];
 
-        INF.init(); // default = zlib wrapper
+        final Inflater inf = INFLATER.get();
+        inf.init(); // default = zlib wrapper
         // Use correct remaining length (original used bytes.length - 1)
-        INF.setInput(bytes, offset, bytes.length - offset, true);
+        inf.setInput(bytes, offset, bytes.length - offset, true);
 
         int outPos = 0;
         while (outPos < uncompSize) {
             // Provide remaining space in one go
-            INF.setOutput(out, outPos, uncompSize - outPos);
-            int rc = INF.inflate(JZlib.Z_NO_FLUSH);
+            inf.setOutput(out, outPos, uncompSize - outPos);
+            int rc = inf.inflate(JZlib.Z_NO_FLUSH);
 
             if (rc == JZlib.Z_STREAM_END) {
-                outPos = (int) INF.getTotalOut();
+                outPos = (int) inf.getTotalOut();
                 break;
             }
             if (rc == JZlib.Z_OK || rc == JZlib.Z_BUF_ERROR) {
                 // Update outPos from total_out (cumulative)
-                outPos = (int) INF.getTotalOut();
+                outPos = (int) inf.getTotalOut();
 
                 // If no input left AND we didn't hit STREAM_END, break to avoid spin
-                if (INF.avail_in == 0 && rc == JZlib.Z_BUF_ERROR) break;
+                if (inf.avail_in == 0 && rc == JZlib.Z_BUF_ERROR) break;
                 continue;
             }
-            INF.end();
+            inf.end();
             throw new RuntimeException("inflate error: " + rc);
         }
 
-        INF.end();
+        inf.end();
         return out;
     }
 
@@ -60,24 +68,26 @@ public class JzLibHelper {
         final int level = strongDeflate ? JZlib.Z_BEST_COMPRESSION : JZlib.Z_NO_COMPRESSION;
         final boolean nowrap = (!strongDeflate) && RAW_NOWRAP_FOR_LEVEL0; // raw only for level 0
 
-        ensureDeflater(level, nowrap);
-        ensureCompCapacity(bytes.length, !nowrap);
+        final DeflateContext ctx = DEFLATE.get();
+        ensureDeflater(ctx, level, nowrap);
+        ensureCompCapacity(ctx, bytes.length, !nowrap);
+        final Deflater def = ctx.def;
 
         // Attach full input/output once; jzlib manages avail_* internally
-        DEF.setInput(bytes, 0, bytes.length, true);
-        DEF.setOutput(comp, 0, comp.length);
+        def.setInput(bytes, 0, bytes.length, true);
+        def.setOutput(ctx.comp, 0, ctx.comp.length);
 
         // Main compress loop
         while (true) {
-            int rc = DEF.deflate(JZlib.Z_NO_FLUSH);
+            int rc = def.deflate(JZlib.Z_NO_FLUSH);
             if (rc == JZlib.Z_OK || rc == JZlib.Z_BUF_ERROR) {
                 // If all input consumed, move to finish
-                if (DEF.avail_in == 0) break;
+                if (def.avail_in == 0) break;
 
                 // If out buffer is full, grow and reattach at current position
-                if (DEF.avail_out == 0) {
-                    growComp();
-                    DEF.setOutput(comp, (int) DEF.getTotalOut(), comp.length - (int) DEF.getTotalOut());
+                if (def.avail_out == 0) {
+                    growComp(ctx);
+                    def.setOutput(ctx.comp, (int) def.getTotalOut(), ctx.comp.length - (int) def.getTotalOut());
                 }
                 continue;
             }
@@ -86,19 +96,19 @@ public class JzLibHelper {
 
         // Finish
         while (true) {
-            if (DEF.avail_out == 0) {
-                growComp();
-                DEF.setOutput(comp, (int) DEF.getTotalOut(), comp.length - (int) DEF.getTotalOut());
+            if (def.avail_out == 0) {
+                growComp(ctx);
+                def.setOutput(ctx.comp, (int) def.getTotalOut(), ctx.comp.length - (int) def.getTotalOut());
             }
-            int rc = DEF.deflate(JZlib.Z_FINISH);
+            int rc = def.deflate(JZlib.Z_FINISH);
             if (rc == JZlib.Z_STREAM_END) break;
             if (rc != JZlib.Z_OK && rc != JZlib.Z_BUF_ERROR) {
                 throw new RuntimeException("deflate(Z_FINISH) error: " + rc);
             }
         }
 
-        int outLen = (int) DEF.getTotalOut();
-        byte[] out = Arrays.copyOf(comp, outLen);
+        int outLen = (int) def.getTotalOut();
+        byte[] out = Arrays.copyOf(ctx.comp, outLen);
 
         // Ready for next call: re-init with desired params then
         // set again in ensureDeflater() on next invocation.
@@ -107,21 +117,21 @@ public class JzLibHelper {
 
     // -------------------- INTERNALS --------------------
 
-    private static void ensureDeflater(int level, boolean nowrap) {
+    private static void ensureDeflater(DeflateContext ctx, int level, boolean nowrap) {
         try {
-            if (DEF == null) {
-                DEF = new Deflater(level, nowrap);
-                currentLevel = level;
-                currentNowrap = nowrap;
+            if (ctx.def == null) {
+                ctx.def = new Deflater(level, nowrap);
+                ctx.currentLevel = level;
+                ctx.currentNowrap = nowrap;
             } else {
-                if (currentLevel != level || currentNowrap != nowrap) {
+                if (ctx.currentLevel != level || ctx.currentNowrap != nowrap) {
                     // Re-init with new level/nowrap (supported by jzlib)
-                    DEF.init(level, nowrap);
-                    currentLevel = level;
-                    currentNowrap = nowrap;
+                    ctx.def.init(level, nowrap);
+                    ctx.currentLevel = level;
+                    ctx.currentNowrap = nowrap;
                 } else {
                     // Same settings; start a fresh stream
-                    DEF.init(level, nowrap);
+                    ctx.def.init(level, nowrap);
                 }
             }
 
@@ -130,13 +140,13 @@ public class JzLibHelper {
         }
     }
 
-    private static void ensureCompCapacity(int inputLen, boolean zlibWrapper) {
+    private static void ensureCompCapacity(DeflateContext ctx, int inputLen, boolean zlibWrapper) {
         int worst = worstCaseZlibSize(inputLen, zlibWrapper);
-        if (comp.length < worst) {
-            comp = new byte[worst];
+        if (ctx.comp.length < worst) {
+            ctx.comp = new byte[worst];
         } else {
             // Attach the full buffer from start for this stream
-            DEF.setOutput(comp, 0, comp.length);
+            ctx.def.setOutput(ctx.comp, 0, ctx.comp.length);
         }
     }
 
@@ -151,7 +161,7 @@ public class JzLibHelper {
         return n + storedOverhead + header + 16; // a little slack
     }
 
-    private static void growComp() {
-        comp = Arrays.copyOf(comp, comp.length * 2);
+    private static void growComp(DeflateContext ctx) {
+        ctx.comp = Arrays.copyOf(ctx.comp, ctx.comp.length * 2);
     }
 }
@@ -1,10 +1,33 @@
 package systems.crigges.jmpq3.compression;
 
+import java.nio.file.Path;
+
 public class RecompressOptions {
     public boolean recompress;
     public boolean useZopfli = false;
     public int iterations = 16;
     public int newSectorSizeShift = 3;
+    /**
+     * Write sector checksums for compressed files.
+     */
+    public boolean sectorCrc = false;
+    /**
+     * Files up to this size, and at most one sector, are written as a single
+     * unit without sector offset table. 0 disables single unit files for
+     * readers which do not support them.
+     */
+    public int singleUnitLimit = 0;
+    /**
+     * Directory to keep compressed sectors in across rebuilds, or null to
+     * always compress. Sectors with the same content and options are taken
+     * from the cache instead of being compressed again, which mostly pays off
+     * with zopfli.
+     */
+    public Path cacheDirectory = null;
+    /**
+     * Decides per file whether and how it is compressed.
+     */
+    public CompressionPolicy policy = new AdaptiveCompressionPolicy();
 
     public RecompressOptions(boolean recompress) {
         this.recompress = recompress;
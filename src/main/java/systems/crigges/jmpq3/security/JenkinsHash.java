@@ -0,0 +1,99 @@
+package systems.crigges.jmpq3.security;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bob Jenkins' lookup3 hash as used by the HET table of MPQ format version 2
+ * and newer archives.
+ * <p>
+ * File names are normalized before hashing by converting ASCII letters to
+ * lower case and forward slashes to backslashes, so the same file path always
+ * results in the same 64 bit hash.
+ */
+public class JenkinsHash {
+    private JenkinsHash() {
+    }
+
+    /**
+     * Generates the 64 bit HET name hash of the given file path.
+     *
+     * @param name file path name.
+     * @return 64 bit hash.
+     */
+    public static long hashFileName(String name) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            final byte value = bytes[i];
+            if (value >= 'A' && value <= 'Z') {
+                bytes[i] = (byte) (value + ('a' - 'A'));
+            } else if (value == '/') {
+                bytes[i] = '\\';
+            }
+        }
+        return hashLittle2(bytes, 1, 2);
+    }
+
+    /**
+     * The lookup3 hashlittle2 function.
+     *
+     * @param key   data to be hashed.
+     * @param primary initial value of the primary hash (pb).
+     * @param secondary initial value of the secondary hash (pc).
+     * @return the primary hash in the upper and the secondary hash in the lower
+     *         32 bits.
+     */
+    public static long hashLittle2(byte[] key, int primary, int secondary) {
+        int length = key.length;
+        int a, b, c;
+        a = b = c = 0xdeadbeef + length + secondary;
+        c += primary;
+
+        int k = 0;
+        while (length > 12) {
+            a += (key[k] & 0xFF) | (key[k + 1] & 0xFF) << 8 | (key[k + 2] & 0xFF) << 16 | (key[k + 3] & 0xFF) << 24;
+            b += (key[k + 4] & 0xFF) | (key[k + 5] & 0xFF) << 8 | (key[k + 6] & 0xFF) << 16 | (key[k + 7] & 0xFF) << 24;
+            c += (key[k + 8] & 0xFF) | (key[k + 9] & 0xFF) << 8 | (key[k + 10] & 0xFF) << 16 | (key[k + 11] & 0xFF) << 24;
+
+            // mix
+            a -= c; a ^= Integer.rotateLeft(c, 4); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 6); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 8); b += a;
+            a -= c; a ^= Integer.rotateLeft(c, 16); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 19); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 4); b += a;
+
+            length -= 12;
+            k += 12;
+        }
+
+        switch (length) {
+            case 12: c += (key[k + 11] & 0xFF) << 24;
+            case 11: c += (key[k + 10] & 0xFF) << 16;
+            case 10: c += (key[k + 9] & 0xFF) << 8;
+            case 9: c += key[k + 8] & 0xFF;
+            case 8: b += (key[k + 7] & 0xFF) << 24;
+            case 7: b += (key[k + 6] & 0xFF) << 16;
+            case 6: b += (key[k + 5] & 0xFF) << 8;
+            case 5: b += key[k + 4] & 0xFF;
+            case 4: a += (key[k + 3] & 0xFF) << 24;
+            case 3: a += (key[k + 2] & 0xFF) << 16;
+            case 2: a += (key[k + 1] & 0xFF) << 8;
+            case 1: a += key[k] & 0xFF;
+                break;
+            case 0:
+                // zero length strings require no mixing
+                return ((long) b << 32) | Integer.toUnsignedLong(c);
+        }
+
+        // final
+        c ^= b; c -= Integer.rotateLeft(b, 14);
+        a ^= c; a -= Integer.rotateLeft(c, 11);
+        b ^= a; b -= Integer.rotateLeft(a, 25);
+        c ^= b; c -= Integer.rotateLeft(b, 16);
+        a ^= c; a -= Integer.rotateLeft(c, 4);
+        b ^= a; b -= Integer.rotateLeft(a, 14);
+        c ^= b; c -= Integer.rotateLeft(b, 24);
+
+        return ((long) b << 32) | Integer.toUnsignedLong(c);
+    }
+}
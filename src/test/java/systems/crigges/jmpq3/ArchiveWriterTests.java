@@ -0,0 +1,73 @@
+package systems.crigges.jmpq3;
+
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import systems.crigges.jmpq3.BlockTable.Block;
+import systems.crigges.jmpq3.compression.RecompressOptions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of the buffered writer, which needs package access.
+ */
+public class ArchiveWriterTests {
+
+    /**
+     * Channel counting the writes it receives.
+     */
+    private static class CountingChannel extends SeekableInMemoryByteChannel {
+        private int writes;
+
+        @Override
+        public int write(ByteBuffer b) throws IOException {
+            writes++;
+            return super.write(b);
+        }
+    }
+
+    @Test
+    public void testFewWritesForManySmallFiles() throws IOException {
+        final int sectorSize = 512;
+        final RecompressOptions options = new RecompressOptions(true);
+        final Random random = new Random(1);
+        final List<byte[]> files = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // several sectors each, so every file skips its sector offset table and writes it last
+            byte[] file = new byte[2000 + random.nextInt(2000)];
+            for (int j = 0; j < file.length; j++) {
+                file[j] = (byte) random.nextInt(16);
+            }
+            files.add(file);
+        }
+
+        CountingChannel channel = new CountingChannel();
+        ArchiveWriter writer = new ArchiveWriter(channel, 0);
+        List<Block> blocks = new ArrayList<>();
+        long currentPos = 0;
+        for (byte[] file : files) {
+            Block block = new Block(currentPos, 0, 0, 0);
+            MpqFile.writeFileAndBlock(file.length, block, MpqFile.sectorsOf(file, sectorSize), writer.sinkAt(currentPos),
+                sectorSize, "", options, (index, sector) -> MpqFile.compressSector(sector, options));
+            blocks.add(block);
+            currentPos += block.getCompressedSize();
+        }
+        writer.flush();
+
+        // one write per full buffer, and a few for files crossing the buffer end
+        Assert.assertTrue(channel.writes <= 3 * (currentPos / ArchiveWriter.BUFFER_SIZE + 1), channel.writes + " writes");
+        Assert.assertEquals(channel.size(), currentPos);
+        byte[] archive = Arrays.copyOf(channel.array(), (int) channel.size());
+        for (int i = 0; i < files.size(); i++) {
+            Block block = blocks.get(i);
+            ByteBuffer stored = ByteBuffer.wrap(archive, (int) block.getFilePos(), block.getCompressedSize()).slice().order(ByteOrder.LITTLE_ENDIAN);
+            Assert.assertEquals(new MpqFile(stored, block, sectorSize, "file" + i).extractToBytes(), files.get(i));
+        }
+    }
+}
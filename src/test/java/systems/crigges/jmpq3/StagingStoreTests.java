@@ -0,0 +1,47 @@
+package systems.crigges.jmpq3;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Tests of the staging store, which needs package access.
+ */
+public class StagingStoreTests {
+
+    @Test
+    public void testScratchFileInDirectory() throws IOException {
+        Path dir = Files.createTempDirectory("jmpq-staging");
+        try {
+            StagingStore store = new StagingStore(() -> dir);
+            store.setMemoryLimit(0);
+            byte[] content = "spilled content".getBytes();
+            FileSource source = store.put("spilled.txt", FileSource.of(content));
+            store.spill();
+            Assert.assertEquals(store.getMemorySize(), 0);
+            try (Stream<Path> files = Files.list(dir)) {
+                Assert.assertEquals(files.count(), 1);
+            }
+
+            ByteBuffer read = ByteBuffer.allocate(content.length);
+            try (ReadableByteChannel channel = source.open()) {
+                while (read.hasRemaining() && channel.read(read) >= 0) {
+                }
+            }
+            Assert.assertEquals(read.array(), content);
+
+            store.close();
+            try (Stream<Path> files = Files.list(dir)) {
+                Assert.assertEquals(files.count(), 0);
+            }
+        } finally {
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -3,23 +3,43 @@ package systems.crigges.jmpq3test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
+import org.testng.SkipException;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 import systems.crigges.jmpq3.*;
+import systems.crigges.jmpq3.compression.AdaptiveCompressionPolicy;
+import systems.crigges.jmpq3.compression.CompressionPolicy;
+import systems.crigges.jmpq3.compression.FileCompression;
 import systems.crigges.jmpq3.compression.RecompressOptions;
+import systems.crigges.jmpq3.security.JenkinsHash;
 import systems.crigges.jmpq3.security.MPQEncryption;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipalLookupService;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by Frotty on 06.03.2017.
@@ -143,6 +163,416 @@ public class MpqTests {
         Assert.expectThrows(JMpqException.class, () -> new BlockTable(ByteBuffer.wrap(new byte[0])).getBlockAtPos(-1));
     }
 
+    @Test
+    public void testHiBlockTable() throws IOException {
+        List<BlockTable.Block> blocks = new ArrayList<>();
+        blocks.add(new BlockTable.Block(0x200L, 10, 20, MpqFile.EXISTS));
+        blocks.add(new BlockTable.Block(0x1_2345_6789L, 10, 20, MpqFile.EXISTS | MpqFile.COMPRESSED));
+        Assert.assertTrue(BlockTable.needsHiBlockTable(blocks));
+
+        ByteBuffer blockBuffer = ByteBuffer.allocate(blocks.size() * 16);
+        ByteBuffer plain = ByteBuffer.allocate(blocks.size() * 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (BlockTable.Block block : blocks) {
+            block.writeToBuffer(plain);
+        }
+        plain.flip();
+        new MPQEncryption(-326913117, false).processFinal(plain, blockBuffer);
+        blockBuffer.flip();
+        ByteBuffer hiBuffer = ByteBuffer.allocate(blocks.size() * 2);
+        BlockTable.writeHiBlockTable(blocks, hiBuffer);
+        hiBuffer.flip();
+
+        BlockTable blockTable = new BlockTable(blockBuffer);
+        Assert.assertEquals(blockTable.getBlockAtPos(1).getFilePos(), 0x2345_6789L);
+        blockTable.readHiBlockTable(hiBuffer);
+        Assert.assertEquals(blockTable.getBlockAtPos(0).getFilePos(), 0x200L);
+        Assert.assertEquals(blockTable.getBlockAtPos(1).getFilePos(), 0x1_2345_6789L);
+    }
+
+    @Test
+    public void jenkinsHashTest() {
+        // reference values of the lookup3 driver
+        byte[] key = "Four score and seven years ago".getBytes();
+        Assert.assertEquals(JenkinsHash.hashLittle2(key, 0, 0), 0xce7226e6_17770551L);
+        Assert.assertEquals(JenkinsHash.hashLittle2(key, 1, 0), 0xbd371de4_e3607caeL);
+        Assert.assertEquals(JenkinsHash.hashLittle2(key, 0, 1), 0x6cbea4b3_cd628161L);
+        Assert.assertEquals(JenkinsHash.hashLittle2(new byte[0], 0, 0), 0xdeadbeef_deadbeefL);
+        Assert.assertEquals(JenkinsHash.hashLittle2(new byte[0], 0xdeadbeef, 0), 0xdeadbeef_bd5b7ddeL);
+
+        // file names are normalized before hashing
+        Assert.assertEquals(JenkinsHash.hashFileName("Units/UnitData.SLK"), JenkinsHash.hashFileName("units\\unitdata.slk"));
+    }
+
+    /**
+     * Builds an empty archive like {@link JMpqEditor#createEmptyArchive()} but
+     * with a format version 3 header.
+     */
+    private static byte[] createEmptyV4Archive() throws IOException {
+        byte[] empty = JMpqEditor.createEmptyArchive();
+        ByteBuffer archive = ByteBuffer.allocate(208 + 2 * 16 + 16).order(ByteOrder.LITTLE_ENDIAN);
+        archive.putInt(JMpqEditor.ARCHIVE_HEADER_MAGIC);
+        archive.putInt(208);
+        archive.putInt(archive.capacity());
+        archive.putShort((short) 3);
+        archive.putShort((short) 3);
+        archive.putInt(208);
+        archive.putInt(208 + 32);
+        archive.putInt(2);
+        archive.putInt(1);
+        archive.position(208);
+        archive.put(empty, 32, 32);
+        ByteBuffer blockTable = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        new BlockTable.Block(208, 0, 0, MpqFile.EXISTS).writeToBuffer(blockTable);
+        blockTable.flip();
+        new MPQEncryption(-326913117, false).processFinal(blockTable, archive);
+        return archive.array();
+    }
+
+    @Test
+    public void testHetBetRebuild() throws IOException {
+        Path archive = Files.createTempFile("jmpq-v4", ".mpq");
+        try {
+            Files.write(archive, createEmptyV4Archive());
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive)) {
+                Assert.assertNull(mpqEditor.getHetTable());
+                for (int i = 0; i < 100; i++) {
+                    mpqEditor.insertByteArray("Units\\File" + i + ".txt", ("content " + i).getBytes());
+                }
+            }
+
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.READ_ONLY)) {
+                Assert.assertNotNull(mpqEditor.getHetTable());
+                Assert.assertNotNull(mpqEditor.getBetTable());
+                Assert.assertEquals(mpqEditor.getBetTable().size(), 101);
+                for (int i = 0; i < 100; i++) {
+                    Assert.assertEquals(mpqEditor.extractFileAsString("units/file" + i + ".txt"), "content " + i);
+                }
+                Assert.assertFalse(mpqEditor.hasFile("Units\\File100.txt"));
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    @Test
+    public void testDamagedHetBetHeaders() throws IOException {
+        List<String> names = Arrays.asList("a.txt", "b.txt", "c.txt");
+        HetTable het = new HetTable(names);
+        ArrayList<BlockTable.Block> blocks = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            blocks.add(new BlockTable.Block(i * 100, 100, 200, MpqFile.EXISTS | MpqFile.COMPRESSED));
+        }
+        BetTable bet = new BetTable(blocks, names, het);
+
+        // field offsets after the extended table header: index size total and index table size
+        for (int[] damage : new int[][]{{16, 200}, {28, -5}, {4, -1}}) {
+            ByteBuffer buf = ByteBuffer.allocate(het.getTableSize()).order(ByteOrder.LITTLE_ENDIAN);
+            het.writeToBuffer(buf);
+            buf.putInt(12 + damage[0], damage[1]);
+            buf.position(12);
+            Assert.expectThrows(JMpqException.class, () -> new HetTable(buf.slice()));
+        }
+        // table entry size, file position bit count and name hash array size
+        for (int[] damage : new int[][]{{12, 1}, {36, 1000}, {68, 0}, {64, -3}}) {
+            ByteBuffer buf = ByteBuffer.allocate(bet.getTableSize()).order(ByteOrder.LITTLE_ENDIAN);
+            bet.writeToBuffer(buf);
+            buf.putInt(12 + damage[0], damage[1]);
+            buf.position(12);
+            Assert.expectThrows(JMpqException.class, () -> new BetTable(buf.slice()));
+        }
+    }
+
+    @Test
+    public void testSectorCrc() throws IOException {
+        byte[] random = new byte[10000];
+        new Random(1).nextBytes(random);
+        String text = String.join("\n", Collections.nCopies(1000, "sector checksum test"));
+
+        Path archive = Files.createTempFile("jmpq-crc", ".mpq");
+        try {
+            Files.write(archive, JMpqEditor.createEmptyArchive());
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.FORCE_V0)) {
+                mpqEditor.insertByteArray("random.bin", random);
+                mpqEditor.insertByteArray("text.txt", text.getBytes());
+                RecompressOptions options = new RecompressOptions(false);
+                options.sectorCrc = true;
+                mpqEditor.close(true, false, options);
+            }
+
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.FORCE_V0)) {
+                Assert.assertTrue((mpqEditor.getMpqFile("random.bin").getFlags() & MpqFile.SECTOR_CRC) != 0);
+                Assert.assertEquals(mpqEditor.extractFileAsBytes("random.bin"), random);
+                Assert.assertEquals(mpqEditor.extractFileAsString("text.txt"), text);
+                mpqEditor.insertByteArray("other.txt", text.getBytes());
+            }
+
+            // existing sectors and their checksums are kept by the rebuild
+            byte[] bytes = Files.readAllBytes(archive);
+            int pos = Collections.indexOfSubList(bytesAsList(bytes), bytesAsList(Arrays.copyOf(random, 64)));
+            Assert.assertTrue(pos > 0);
+            bytes[pos + 10] ^= 1;
+            try (JMpqEditor mpqEditor = new JMpqEditor(bytes, MPQOpenOption.FORCE_V0, MPQOpenOption.READ_ONLY)) {
+                Assert.assertEquals(mpqEditor.extractFileAsString("text.txt"), text);
+                Assert.expectThrows(JMpqException.class, () -> mpqEditor.extractFileAsBytes("random.bin"));
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    private static List<Byte> bytesAsList(byte[] bytes) {
+        List<Byte> list = new ArrayList<>(bytes.length);
+        for (byte b : bytes) {
+            list.add(b);
+        }
+        return list;
+    }
+
+    @Test
+    public void testVerifyIntegrity() throws IOException {
+        Path archive = Files.createTempFile("jmpq-v4", ".mpq");
+        try {
+            Files.write(archive, createEmptyV4Archive());
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive)) {
+                mpqEditor.insertByteArray("test.txt", "integrity test content".getBytes());
+            }
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.READ_ONLY)) {
+                mpqEditor.verifyIntegrity();
+            }
+
+            // damage the hash table, which is not used for lookups when a HET table exists
+            byte[] bytes = Files.readAllBytes(archive);
+            int hashPos = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt(16);
+            bytes[hashPos] ^= 1;
+            try (JMpqEditor mpqEditor = new JMpqEditor(bytes, MPQOpenOption.READ_ONLY)) {
+                Assert.assertEquals(mpqEditor.extractFileAsString("test.txt"), "integrity test content");
+                Assert.expectThrows(JMpqException.class, mpqEditor::verifyIntegrity);
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+
+    @Test
+    public void testAppendInPlace() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        Map<String, byte[]> contents = new HashMap<>();
+        long scriptPos;
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            for (String name : mpqEditor.getFileNames()) {
+                contents.put(name, mpqEditor.extractFileAsBytes(name));
+            }
+            scriptPos = mpqEditor.getBlockTable().getBlockAtPos(mpqEditor.getHashTable().getBlockIndexOfFile("war3map.j")).getFilePos();
+        }
+        byte[] before = Files.readAllBytes(mpq.toPath());
+
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.setAppendInPlace(true);
+            mpqEditor.insertFile("test.txt", getFile("Example.txt"));
+        }
+
+        byte[] after = Files.readAllBytes(mpq.toPath());
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            // existing blocks are neither moved nor rewritten
+            BlockTable.Block script = mpqEditor.getBlockTable().getBlockAtPos(mpqEditor.getHashTable().getBlockIndexOfFile("war3map.j"));
+            Assert.assertEquals(script.getFilePos(), scriptPos);
+            int headerOffset = 0;
+            while (ByteBuffer.wrap(before, headerOffset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() != JMpqEditor.ARCHIVE_HEADER_MAGIC) {
+                headerOffset += 0x200;
+            }
+            int start = headerOffset + (int) scriptPos;
+            int end = start + script.getCompressedSize();
+            Assert.assertEquals(Arrays.copyOfRange(after, start, end), Arrays.copyOfRange(before, start, end));
+            // only the header is overwritten, the old archive stays valid until it is
+            Assert.assertTrue(after.length > before.length);
+            int headerEnd = headerOffset + 32;
+            Assert.assertEquals(Arrays.copyOfRange(after, 0, headerOffset), Arrays.copyOfRange(before, 0, headerOffset));
+            Assert.assertEquals(Arrays.copyOfRange(after, headerEnd, before.length), Arrays.copyOfRange(before, headerEnd, before.length));
+            int archiveSize = ByteBuffer.wrap(after, headerOffset + 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            Assert.assertEquals(archiveSize, after.length - headerOffset);
+
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                Assert.assertEquals(mpqEditor.extractFileAsBytes(entry.getKey()), entry.getValue());
+            }
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("test.txt"), Files.readAllBytes(getFile("Example.txt").toPath()));
+        }
+    }
+
+    @Test
+    public void testStreamingInsert() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        // several sectors, partly compressible
+        byte[] large = new byte[300_000];
+        new Random(7).nextBytes(large);
+        Arrays.fill(large, 100_000, 200_000, (byte) 'a');
+        Path path = Files.createTempFile("jmpq-stream", ".bin");
+        try {
+            Files.write(path, large);
+            for (boolean recompress : new boolean[]{false, true}) {
+                try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+                    mpqEditor.insertFile("path.bin", path, true);
+                    mpqEditor.insertStream("stream.bin", new ByteArrayInputStream(large), large.length, true);
+                    mpqEditor.insertChannel("channel.bin", Files.newByteChannel(path), large.length, true);
+                    mpqEditor.close(true, false, recompress);
+                }
+                try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+                    Assert.assertEquals(mpqEditor.extractFileAsBytes("path.bin"), large);
+                    Assert.assertEquals(mpqEditor.extractFileAsBytes("stream.bin"), large);
+                    Assert.assertEquals(mpqEditor.extractFileAsBytes("channel.bin"), large);
+                }
+            }
+
+            // content shorter than its announced size fails the commit
+            JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0);
+            mpqEditor.insertStream("short.bin", new ByteArrayInputStream(large), large.length + 1, false);
+            Assert.expectThrows(JMpqException.class, mpqEditor::close);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void testCloseToStream() throws IOException {
+        for (File mpq : getMpqs()) {
+            for (boolean recompress : new boolean[]{false, true}) {
+                byte[] before = Files.readAllBytes(mpq.toPath());
+                ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+                    if (!mpqEditor.isCanWrite()) {
+                        continue;
+                    }
+                    mpqEditor.insertFile("test.txt", getFile("Example.txt"), true);
+                    mpqEditor.close(streamed, true, false, new RecompressOptions(recompress));
+                }
+                // new files compressed into a scratch file give the same archive
+                ByteArrayOutputStream spilled = new ByteArrayOutputStream();
+                try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+                    mpqEditor.setStagingMemoryLimit(0);
+                    mpqEditor.insertFile("test.txt", getFile("Example.txt"), true);
+                    mpqEditor.close(spilled, true, false, new RecompressOptions(recompress));
+                }
+                // the archive is untouched and the stream holds the same archive a rebuild would write
+                Assert.assertEquals(Files.readAllBytes(mpq.toPath()), before);
+                try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+                    mpqEditor.insertFile("test.txt", getFile("Example.txt"), true);
+                    mpqEditor.close(true, false, recompress);
+                }
+                Assert.assertEquals(streamed.toByteArray(), Files.readAllBytes(mpq.toPath()));
+                Assert.assertEquals(spilled.toByteArray(), streamed.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testInMemoryRebuild() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        byte[] original = Files.readAllBytes(mpq.toPath());
+        byte[] rebuilt;
+        try (JMpqEditor mpqEditor = new JMpqEditor(original.clone(), MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.toByteArray(), original);
+            mpqEditor.insertFile("test.txt", getFile("Example.txt"), true);
+            mpqEditor.close();
+            rebuilt = mpqEditor.toByteArray();
+        }
+
+        // editors of files give the same archive
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.toByteArray(), original);
+            mpqEditor.insertFile("test.txt", getFile("Example.txt"), true);
+            mpqEditor.close();
+            Assert.assertEquals(mpqEditor.toByteArray(), rebuilt);
+        }
+        Assert.assertEquals(rebuilt, Files.readAllBytes(mpq.toPath()));
+        try (JMpqEditor mpqEditor = new JMpqEditor(rebuilt, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("test.txt"), Files.readAllBytes(getFile("Example.txt").toPath()));
+        }
+    }
+
+    @Test
+    public void testRebuildKeepsEncryptedFiles() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("pkwareTest")).findFirst().get();
+        Map<String, byte[]> contents = extractAll(mpq);
+        Map<String, Integer> flags = new HashMap<>();
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            for (String name : mpqEditor.getFileNames()) {
+                if (mpqEditor.hasFile(name) && !name.equals("(listfile)")) {
+                    flags.put(name, mpqEditor.getMpqFile(name).getFlags());
+                }
+            }
+        }
+        Assert.assertTrue(flags.values().stream().anyMatch(f -> (f & MpqFile.ADJUSTED_ENCRYPTED) != 0));
+
+        // the inserted file moves the existing files, their keys change
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("(aaa).txt", "moved".getBytes());
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            for (Map.Entry<String, Integer> entry : flags.entrySet()) {
+                Assert.assertEquals(mpqEditor.getMpqFile(entry.getKey()).getFlags(), (int) entry.getValue(), entry.getKey());
+                Assert.assertEquals(mpqEditor.extractFileAsBytes(entry.getKey()), contents.get(mpq.getName() + "/" + entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void testDeduplicateFiles() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        byte[] content = Files.readAllBytes(getFile("Example.txt").toPath());
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.setDeduplicateFiles(true);
+            mpqEditor.insertByteArray("a.txt", content);
+            mpqEditor.insertByteArray("b.txt", content.clone());
+            mpqEditor.insertByteArray("c.txt", "other".getBytes());
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.getHashTable().getBlockIndexOfFile("a.txt"), mpqEditor.getHashTable().getBlockIndexOfFile("b.txt"));
+            Assert.assertNotEquals(mpqEditor.getHashTable().getBlockIndexOfFile("a.txt"), mpqEditor.getHashTable().getBlockIndexOfFile("c.txt"));
+            // a rebuild keeps the shared block
+            mpqEditor.insertByteArray("d.txt", "more".getBytes());
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.getHashTable().getBlockIndexOfFile("a.txt"), mpqEditor.getHashTable().getBlockIndexOfFile("b.txt"));
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("a.txt"), content);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("b.txt"), content);
+            Assert.assertEquals(mpqEditor.extractFileAsString("c.txt"), "other");
+            Assert.assertEquals(mpqEditor.extractFileAsString("d.txt"), "more");
+        }
+
+        // the same content with another compression gets its own block
+        byte[] text = String.join("", Collections.nCopies(500, "compressible ")).getBytes();
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.setDeduplicateFiles(true);
+            mpqEditor.insertByteArray("e.txt", text);
+            mpqEditor.insertByteArray("f.bin", text.clone());
+            RecompressOptions options = new RecompressOptions(true);
+            options.policy = (name, size, sample, opts) -> name.endsWith(".bin") ? FileCompression.STORE : FileCompression.DEFLATE;
+            mpqEditor.close(true, false, options);
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertNotEquals(mpqEditor.getHashTable().getBlockIndexOfFile("e.txt"), mpqEditor.getHashTable().getBlockIndexOfFile("f.bin"));
+            BlockTable.Block stored = mpqEditor.getBlockTable().getBlockAtPos(mpqEditor.getHashTable().getBlockIndexOfFile("f.bin"));
+            BlockTable.Block compressed = mpqEditor.getBlockTable().getBlockAtPos(mpqEditor.getHashTable().getBlockIndexOfFile("e.txt"));
+            Assert.assertTrue(compressed.getCompressedSize() < stored.getCompressedSize());
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("e.txt"), text);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("f.bin"), text);
+        }
+    }
+
+    @Test
+    public void testTinyFiles() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("empty.txt", new byte[0]);
+            mpqEditor.insertByteArray("one.txt", new byte[]{'x'});
+            mpqEditor.insertByteArray("abc.txt", "abc".getBytes());
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("empty.txt"), new byte[0]);
+            Assert.assertEquals(mpqEditor.extractFileAsString("one.txt"), "x");
+            Assert.assertEquals(mpqEditor.extractFileAsString("abc.txt"), "abc");
+        }
+    }
+
     @Test
     public void testInsertAndExtract() throws IOException {
         File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
@@ -170,6 +600,115 @@ public class MpqTests {
         }
     }
 
+    @Test
+    public void testUnmodifiedClose() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        byte[] before = Files.readAllBytes(mpq.toPath());
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            Assert.assertTrue(mpqEditor.isCanWrite());
+            mpqEditor.extractFileAsBytes("war3map.j");
+            mpqEditor.deleteFile("does not exist");
+        }
+        Assert.assertEquals(Files.readAllBytes(mpq.toPath()), before);
+
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.deleteFile("war3map.j");
+        }
+        Assert.assertFalse(Arrays.equals(Files.readAllBytes(mpq.toPath()), before));
+    }
+
+    @Test
+    public void testRebuildReplacesArchive() throws IOException {
+        Path dir = Files.createTempDirectory("jmpq-rename");
+        Path archive = dir.resolve("test.w3x");
+        try {
+            JMpqEditor.createEmptyArchive(archive.toFile());
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.FORCE_V0)) {
+                mpqEditor.insertByteArray("war3map.j", "test script".getBytes());
+            }
+
+            // the rebuilt archive was moved over the old one
+            try (Stream<Path> content = Files.list(dir)) {
+                Assert.assertEquals(content.count(), 1);
+            }
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+                Assert.assertEquals(mpqEditor.extractFileAsString("war3map.j"), "test script");
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testRebuildKeepsFileAttributes() throws IOException {
+        Path dir = Files.createTempDirectory("jmpq-attributes");
+        Path archive = dir.resolve("test.w3x");
+        try {
+            JMpqEditor.createEmptyArchive(archive.toFile());
+            PosixFileAttributeView view = Files.getFileAttributeView(archive, PosixFileAttributeView.class);
+            if (view == null) {
+                throw new SkipException("No POSIX file attributes");
+            }
+            view.setPermissions(PosixFilePermissions.fromString("rw-rw-r--"));
+            try {
+                // only possible with enough privileges, otherwise the current owner is checked
+                UserPrincipalLookupService lookup = archive.getFileSystem().getUserPrincipalLookupService();
+                view.setGroup(lookup.lookupPrincipalByGroupName("daemon"));
+                view.setOwner(lookup.lookupPrincipalByName("daemon"));
+            } catch (IOException | UnsupportedOperationException ignored) {
+            }
+            PosixFileAttributes before = view.readAttributes();
+
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.FORCE_V0)) {
+                mpqEditor.insertByteArray("war3map.j", "test script".getBytes());
+            }
+
+            PosixFileAttributes after = Files.readAttributes(archive, PosixFileAttributes.class);
+            Assert.assertEquals(after.permissions(), before.permissions());
+            Assert.assertEquals(after.owner(), before.owner());
+            Assert.assertEquals(after.group(), before.group());
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+                Assert.assertEquals(mpqEditor.extractFileAsString("war3map.j"), "test script");
+            }
+        } finally {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testRebuildThroughSymbolicLink() throws IOException {
+        Path dir = Files.createTempDirectory("jmpq-link");
+        Path archive = dir.resolve("test.w3x");
+        Path link = dir.resolve("link.w3x");
+        try {
+            JMpqEditor.createEmptyArchive(archive.toFile());
+            try {
+                Files.createSymbolicLink(link, archive.getFileName());
+            } catch (IOException | UnsupportedOperationException e) {
+                throw new SkipException("No symbolic links: " + e.getMessage());
+            }
+            try (JMpqEditor mpqEditor = new JMpqEditor(link, MPQOpenOption.FORCE_V0)) {
+                mpqEditor.insertByteArray("war3map.j", "test script".getBytes());
+            }
+
+            // the link is kept and the file it points to was replaced
+            Assert.assertTrue(Files.isSymbolicLink(link));
+            Assert.assertTrue(Files.isRegularFile(archive, LinkOption.NOFOLLOW_LINKS));
+            try (Stream<Path> content = Files.list(dir)) {
+                Assert.assertEquals(content.count(), 2);
+            }
+            try (JMpqEditor mpqEditor = new JMpqEditor(archive, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+                Assert.assertEquals(mpqEditor.extractFileAsString("war3map.j"), "test script");
+            }
+        } finally {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(dir);
+        }
+    }
+
     @Test
     public void testInsertOrder() throws IOException {
         files = new File[1];
@@ -211,6 +750,547 @@ public class MpqTests {
         }
     }
 
+    @Test
+    public void testConcurrentExtraction() throws Exception {
+        File[] mpqs = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap") || pq.getName().contains("wavTest")
+            || pq.getName().contains("implodedTest")).toArray(File[]::new);
+        Map<String, byte[]> expected = new HashMap<>();
+        for (File mpq : mpqs) {
+            expected.putAll(extractAll(mpq));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Map<String, byte[]>>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                File mpq = mpqs[i % mpqs.length];
+                results.add(executor.submit(() -> extractAll(mpq)));
+            }
+            for (Future<Map<String, byte[]>> result : results) {
+                for (Map.Entry<String, byte[]> entry : result.get().entrySet()) {
+                    Assert.assertEquals(entry.getValue(), expected.get(entry.getKey()));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Map<String, byte[]> extractAll(File mpq) throws IOException {
+        Map<String, byte[]> contents = new HashMap<>();
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            for (String name : mpqEditor.getFileNames()) {
+                if (mpqEditor.hasFile(name)) {
+                    contents.put(mpq.getName() + "/" + name, mpqEditor.extractFileAsBytes(name));
+                }
+            }
+        }
+        return contents;
+    }
+
+    @Test
+    public void testRecompressIsDeterministic() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        Path copy = Files.createTempFile("jmpq-recompress", ".w3x");
+        try {
+            Files.copy(mpq.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+            Map<String, byte[]> contents = new HashMap<>();
+            try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+                for (String name : mpqEditor.getFileNames()) {
+                    contents.put(name, mpqEditor.extractFileAsBytes(name));
+                }
+            }
+
+            RecompressOptions options = new RecompressOptions(true);
+            options.newSectorSizeShift = 1;
+            new JMpqEditor(mpq, MPQOpenOption.FORCE_V0).close(true, false, options);
+            new JMpqEditor(copy, MPQOpenOption.FORCE_V0).close(true, false, options);
+
+            // sectors are compressed in parallel, the layout must not depend on that
+            Assert.assertEquals(Files.readAllBytes(copy), Files.readAllBytes(mpq.toPath()));
+            try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+                for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                    Assert.assertEquals(mpqEditor.extractFileAsBytes(entry.getKey()), entry.getValue());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    @Test
+    public void testCompressionCache() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        Path copy = Files.createTempFile("jmpq-cache", ".w3x");
+        Path cache = Files.createTempDirectory("jmpq-cache");
+        try {
+            Files.copy(mpq.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+            RecompressOptions options = new RecompressOptions(true);
+            new JMpqEditor(mpq, MPQOpenOption.FORCE_V0).close(true, false, options);
+
+            // the first build fills the cache, the second one reads it
+            options.cacheDirectory = cache;
+            for (int i = 0; i < 2; i++) {
+                Path build = Files.copy(copy, cache.resolveSibling(cache.getFileName() + ".w3x"), StandardCopyOption.REPLACE_EXISTING);
+                try {
+                    new JMpqEditor(build, MPQOpenOption.FORCE_V0).close(true, false, options);
+                    Assert.assertEquals(Files.readAllBytes(build), Files.readAllBytes(mpq.toPath()));
+                } finally {
+                    Files.deleteIfExists(build);
+                }
+                try (Stream<Path> entries = Files.walk(cache)) {
+                    Assert.assertTrue(entries.anyMatch(Files::isRegularFile));
+                }
+            }
+
+            // damaged entries are compressed again
+            List<Path> entries;
+            try (Stream<Path> walk = Files.walk(cache)) {
+                entries = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                byte[] entry = Files.readAllBytes(entries.get(i));
+                Files.write(entries.get(i), i % 2 == 0 ? new byte[0] : Arrays.copyOf(entry, entry.length - 1));
+            }
+            Path build = Files.copy(copy, cache.resolveSibling(cache.getFileName() + ".w3x"), StandardCopyOption.REPLACE_EXISTING);
+            try {
+                new JMpqEditor(build, MPQOpenOption.FORCE_V0).close(true, false, options);
+                Assert.assertEquals(Files.readAllBytes(build), Files.readAllBytes(mpq.toPath()));
+            } finally {
+                Files.deleteIfExists(build);
+            }
+        } finally {
+            Files.deleteIfExists(copy);
+            try (Stream<Path> entries = Files.walk(cache)) {
+                entries.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testCompressionPolicy() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        byte[] random = new byte[20000];
+        new Random(7).nextBytes(random);
+        byte[] text = new byte[20000];
+        Arrays.fill(text, (byte) 'a');
+        AdaptiveCompressionPolicy policy = new AdaptiveCompressionPolicy();
+        policy.setRule(".raw", FileCompression.STORE);
+        RecompressOptions options = new RecompressOptions(true);
+        options.policy = policy;
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("random.bin", random);
+            mpqEditor.insertByteArray("text.txt", text);
+            mpqEditor.insertByteArray("text.raw", text);
+            mpqEditor.close(true, false, options);
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            // stored files only add their sector offset table, sectors have 4096 bytes
+            int sectors = (text.length + 4095) / 4096;
+            Assert.assertEquals(getStoredSize(mpqEditor, "random.bin"), random.length + (sectors + 1) * 4);
+            Assert.assertEquals(getStoredSize(mpqEditor, "text.raw"), text.length + (sectors + 1) * 4);
+            Assert.assertTrue(getStoredSize(mpqEditor, "text.txt") < text.length / 10);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("random.bin"), random);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("text.txt"), text);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("text.raw"), text);
+        }
+    }
+
+    @Test
+    public void testSingleUnitFiles() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        byte[] small = new byte[1000];
+        Arrays.fill(small, (byte) 'a');
+        byte[] large = new byte[10000];
+        new Random(3).nextBytes(large);
+        RecompressOptions options = new RecompressOptions(true);
+        options.singleUnitLimit = 4096;
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("small.txt", small);
+            mpqEditor.insertByteArray("large.bin", large);
+            mpqEditor.close(true, false, options);
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertTrue((mpqEditor.getMpqFile("(listfile)").getFlags() & MpqFile.SINGLE_UNIT) != 0);
+            Assert.assertTrue(mpqEditor.getFileNames().contains("small.txt"));
+        }
+        // copied again as they are
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("other.txt", "other".getBytes());
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertTrue((mpqEditor.getMpqFile("small.txt").getFlags() & MpqFile.SINGLE_UNIT) != 0);
+            Assert.assertEquals(mpqEditor.getMpqFile("large.bin").getFlags() & MpqFile.SINGLE_UNIT, 0);
+            Assert.assertTrue(getStoredSize(mpqEditor, "small.txt") < small.length / 10);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("small.txt"), small);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("large.bin"), large);
+        }
+    }
+
+    @Test
+    public void testLayoutProfile() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        AccessProfile profile = new AccessProfile();
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            List<String> names = new ArrayList<>();
+            for (String name : mpqEditor.getFileNames()) {
+                if (mpqEditor.hasFile(name) && !name.startsWith("(")) {
+                    names.add(0, name);
+                }
+            }
+            mpqEditor.recordAccess(profile);
+            for (String name : names.subList(0, 2)) {
+                mpqEditor.extractFileAsBytes(name);
+            }
+            mpqEditor.recordAccess(null);
+            mpqEditor.extractFileAsBytes(names.get(2));
+        }
+        profile.record("new.txt");
+        List<String> profiled = new AccessProfile(profile.asByteArray()).getFiles();
+        Assert.assertEquals(profiled.size(), 3);
+        Map<String, byte[]> before = extractAll(mpq);
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("new.txt", "new".getBytes());
+            mpqEditor.setLayoutProfile(profile);
+            mpqEditor.close(streamed, true, false, new RecompressOptions(false));
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("new.txt", "new".getBytes());
+            mpqEditor.setLayoutProfile(profile);
+        }
+        Assert.assertEquals(streamed.toByteArray(), Files.readAllBytes(mpq.toPath()));
+
+        // the profiled files come first in profile order
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            long lastPos = -1;
+            for (String name : profiled) {
+                long pos = getFilePos(mpqEditor, name);
+                Assert.assertTrue(pos > lastPos);
+                lastPos = pos;
+            }
+            for (String name : mpqEditor.getFileNames()) {
+                if (!profiled.contains(name) && mpqEditor.hasFile(name)) {
+                    Assert.assertTrue(getFilePos(mpqEditor, name) > lastPos);
+                }
+            }
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("new.txt"), "new".getBytes());
+        }
+        Map<String, byte[]> after = extractAll(mpq);
+        for (Map.Entry<String, byte[]> entry : before.entrySet()) {
+            if (!entry.getKey().endsWith("(listfile)")) {
+                Assert.assertEquals(after.get(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testJournalRecovery() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        Path journal = mpq.toPath().resolveSibling(mpq.getName() + ".journal");
+        byte[] before = Files.readAllBytes(mpq.toPath());
+        byte[] streamed = "streamed".getBytes();
+        String deleted;
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            deleted = mpqEditor.getFileNames().stream().filter(name -> mpqEditor.hasFile(name) && !name.startsWith("(")).findFirst().get();
+            mpqEditor.insertByteArray("first.txt", "first".getBytes());
+            mpqEditor.insertStream("streamed.txt", new ByteArrayInputStream(streamed), streamed.length, false);
+            mpqEditor.deleteFile(deleted);
+            mpqEditor.checkpoint();
+            // not checkpointed, lost with the process
+            mpqEditor.insertByteArray("lost.txt", "lost".getBytes());
+            mpqEditor.closeReadOnly();
+        }
+        Assert.assertEquals(Files.readAllBytes(mpq.toPath()), before);
+        // a torn record after the last commit is discarded
+        long committed = Files.size(journal);
+        Files.write(journal, new byte[]{1, 0, 0}, StandardOpenOption.APPEND);
+
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(Files.size(journal), committed);
+            Assert.assertTrue(mpqEditor.getFileNames().contains("first.txt"));
+            Assert.assertFalse(mpqEditor.getFileNames().contains("lost.txt"));
+        }
+        Assert.assertFalse(Files.exists(journal));
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("first.txt"), "first".getBytes());
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("streamed.txt"), streamed);
+            Assert.assertFalse(mpqEditor.hasFile(deleted));
+            Assert.assertFalse(mpqEditor.hasFile("lost.txt"));
+        }
+    }
+
+    @Test
+    public void testRenameAndDeleteInPlace() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("pkwareTest")).findFirst().get();
+        Map<String, byte[]> contents = extractAll(mpq);
+        String prefix = mpq.getName() + "/";
+        byte[] before = Files.readAllBytes(mpq.toPath());
+        long texturePos;
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            texturePos = getFilePos(mpqEditor, "uryuwing.blp");
+            mpqEditor.setAppendInPlace(true);
+            mpqEditor.renameFile("uryuwing.blp", "textures\\uryuwing.blp");
+            mpqEditor.deleteFile("WaterWake2.blp");
+        }
+        // the listfile and the tables were appended, only the header changed in place
+        byte[] after = Files.readAllBytes(mpq.toPath());
+        int headerOffset = 0;
+        while (ByteBuffer.wrap(before, headerOffset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() != JMpqEditor.ARCHIVE_HEADER_MAGIC) {
+            headerOffset += 0x200;
+        }
+        int headerEnd = headerOffset + 32;
+        Assert.assertTrue(after.length > before.length);
+        Assert.assertEquals(Arrays.copyOfRange(after, 0, headerOffset), Arrays.copyOfRange(before, 0, headerOffset));
+        Assert.assertEquals(Arrays.copyOfRange(after, headerEnd, before.length), Arrays.copyOfRange(before, headerEnd, before.length));
+        Assert.assertEquals(ByteBuffer.wrap(after, headerOffset + 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt(), after.length - headerOffset);
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(getFilePos(mpqEditor, "textures\\uryuwing.blp"), texturePos);
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("textures\\uryuwing.blp"), contents.get(prefix + "uryuwing.blp"));
+            Assert.assertFalse(mpqEditor.hasFile("uryuwing.blp"));
+            Assert.assertFalse(mpqEditor.hasFile("WaterWake2.blp"));
+            Assert.assertTrue(mpqEditor.getFileNames().contains("textures\\uryuwing.blp"));
+            mpqEditor.verifyIntegrity();
+
+            // encrypted files are re-encrypted for their new name by the rebuild
+            mpqEditor.renameFile("War3map.w3e", "renamed.w3e");
+            mpqEditor.renameFile("textures\\uryuwing.blp", "uryuwing.blp");
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("renamed.w3e"), contents.get(prefix + "War3map.w3e"));
+            Assert.assertEquals(mpqEditor.extractFileAsBytes("uryuwing.blp"), contents.get(prefix + "uryuwing.blp"));
+            Assert.assertFalse(mpqEditor.hasFile("War3map.w3e"));
+            Assert.expectThrows(IllegalArgumentException.class, () -> new JMpqEditor(mpq, MPQOpenOption.FORCE_V0).renameFile("missing", "other"));
+        }
+    }
+
+    @Test
+    public void testDeleteInPlaceBeforeData() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("normalMap")).findFirst().get();
+        // a small first file makes room for the tables in front of all other data
+        byte[] pad = new byte[2048];
+        new Random(3).nextBytes(pad);
+        AccessProfile profile = new AccessProfile();
+        profile.record("pad.bin");
+        long padPos;
+        int padSize;
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.insertByteArray("pad.bin", pad);
+            mpqEditor.setLayoutProfile(profile);
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            padPos = getFilePos(mpqEditor, "pad.bin");
+            padSize = getStoredSize(mpqEditor, "pad.bin");
+        }
+        Map<String, byte[]> contents = extractAll(mpq);
+
+        // move the tables over the pad and cut them from the end
+        byte[] archive = Files.readAllBytes(mpq.toPath());
+        int headerOffset = 0;
+        while (ByteBuffer.wrap(archive, headerOffset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() != JMpqEditor.ARCHIVE_HEADER_MAGIC) {
+            headerOffset += 0x200;
+        }
+        ByteBuffer header = ByteBuffer.wrap(archive, headerOffset, 32).slice().order(ByteOrder.LITTLE_ENDIAN);
+        int hashPos = header.getInt(16);
+        int blockPos = header.getInt(20);
+        int hashLength = header.getInt(24) * 16;
+        int blockLength = header.getInt(28) * 16;
+        Assert.assertEquals(blockPos, hashPos + hashLength);
+        Assert.assertTrue(hashLength + blockLength <= padSize);
+        System.arraycopy(archive, headerOffset + hashPos, archive, headerOffset + (int) padPos, hashLength + blockLength);
+        header.putInt(16, (int) padPos);
+        header.putInt(20, (int) padPos + hashLength);
+        header.putInt(8, hashPos);
+        Files.write(mpq.toPath(), Arrays.copyOf(archive, headerOffset + hashPos));
+
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.setAppendInPlace(true);
+            mpqEditor.deleteFile("pad.bin");
+            mpqEditor.deleteFile("war3map.j");
+        }
+        // the data after the old tables is kept
+        byte[] after = Files.readAllBytes(mpq.toPath());
+        Assert.assertEquals(Arrays.copyOfRange(after, headerOffset + 32, headerOffset + hashPos), Arrays.copyOfRange(archive, headerOffset + 32, headerOffset + hashPos));
+        Map<String, byte[]> remaining = extractAll(mpq);
+        String prefix = mpq.getName() + "/";
+        contents.remove(prefix + "pad.bin");
+        contents.remove(prefix + "war3map.j");
+        contents.remove(prefix + "(listfile)");
+        remaining.remove(prefix + "(listfile)");
+        Assert.assertEquals(remaining.keySet(), contents.keySet());
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            Assert.assertEquals(remaining.get(entry.getKey()), entry.getValue(), entry.getKey());
+        }
+    }
+
+    @Test
+    public void testRebuildProgress() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("pkwareTest")).findFirst().get();
+        byte[] original = Files.readAllBytes(mpq.toPath());
+        JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0);
+        mpqEditor.insertByteArray("progress.txt", "progress test".getBytes());
+        mpqEditor.setRebuildListener(new RebuildListener() {
+            private boolean started;
+
+            @Override
+            public void fileStarted(RebuildProgress progress) {
+                started = true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return started;
+            }
+        });
+        Assert.expectThrows(RebuildCancelledException.class, mpqEditor::close);
+        Assert.assertEquals(Files.readAllBytes(mpq.toPath()), original);
+
+        // existing files extracted for recompression are not left behind as inserts
+        RecompressOptions recompress = new RecompressOptions(true);
+        recompress.policy = new CompressionPolicy() {
+            @Override
+            public boolean recompressExisting(String name, long size) {
+                return true;
+            }
+
+            @Override
+            public FileCompression select(String name, long size, byte[] sample, RecompressOptions options) {
+                return FileCompression.DEFLATE;
+            }
+        };
+        mpqEditor.setRebuildListener(new RebuildListener() {
+            private boolean started;
+
+            @Override
+            public void fileStarted(RebuildProgress progress) {
+                started = true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return started;
+            }
+        });
+        Assert.expectThrows(RebuildCancelledException.class, () -> mpqEditor.close(true, false, recompress));
+        Assert.assertEquals(mpqEditor.getStagedMemorySize(), "progress test".length());
+
+        List<RebuildProgress.Phase> phases = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+        RebuildProgress[] last = new RebuildProgress[1];
+        mpqEditor.setRebuildListener(new RebuildListener() {
+            @Override
+            public void phaseStarted(RebuildProgress progress) {
+                phases.add(progress.getPhase());
+            }
+
+            @Override
+            public void fileFinished(RebuildProgress progress) {
+                files.add(progress.getCurrentFile());
+            }
+
+            @Override
+            public void finished(RebuildProgress progress) {
+                last[0] = progress;
+            }
+        });
+        mpqEditor.close();
+        Assert.assertEquals(phases, Arrays.asList(RebuildProgress.Phase.COPY_EXISTING, RebuildProgress.Phase.COMPRESS_NEW,
+            RebuildProgress.Phase.TABLES));
+        Assert.assertEquals(files.get(files.size() - 1), "progress.txt");
+        Assert.assertEquals(last[0].getFilesDone(), last[0].getFileCount());
+        Assert.assertEquals(last[0].getFilesDone(), files.size());
+        Assert.assertEquals(last[0].getBytesDone(), last[0].getByteCount());
+        Assert.assertTrue(last[0].getBytesPerSecond() > 0);
+        try (JMpqEditor reopened = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(reopened.extractFileAsBytes("progress.txt"), "progress test".getBytes());
+        }
+    }
+
+    @Test
+    public void testRebuildPlan() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("pkwareTest")).findFirst().get();
+        JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0);
+        mpqEditor.insertByteArray("plan.txt", "planned file".getBytes());
+
+        RebuildPlan recompressPlan = mpqEditor.planRebuild(true, new RecompressOptions(true));
+        Assert.assertTrue(recompressPlan.getRecompressedFiles().contains("uryuwing.blp"));
+        Assert.assertEquals(recompressPlan.getCopyBytes(), 0);
+
+        RebuildPlan plan = mpqEditor.planRebuild(true, new RecompressOptions(false));
+        Assert.assertEquals(plan.getFiles().get(plan.getFiles().size() - 1), "plan.txt");
+        Assert.assertFalse(plan.isCopied("plan.txt"));
+        Assert.assertTrue(plan.isCopied("uryuwing.blp"));
+        Assert.assertTrue(plan.getRecompressedFiles().isEmpty());
+        Assert.assertTrue(plan.estimateTime(1e6, 1e5, TimeUnit.NANOSECONDS) > 0);
+        mpqEditor.close(plan);
+
+        byte[] rebuilt = Files.readAllBytes(mpq.toPath());
+        Assert.assertTrue(rebuilt.length <= plan.getProjectedSize());
+        ByteBuffer header = ByteBuffer.wrap(rebuilt).order(ByteOrder.LITTLE_ENDIAN);
+        int headerPos = 0;
+        while (header.getInt(headerPos) != JMpqEditor.ARCHIVE_HEADER_MAGIC) {
+            headerPos += 512;
+        }
+        Assert.assertEquals(header.getInt(headerPos + 24), plan.getHashTableSize());
+        Assert.assertEquals(header.getInt(headerPos + 28), plan.getBlockTableSize());
+        try (JMpqEditor reopened = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            Assert.assertEquals(reopened.extractFileAsBytes("plan.txt"), "planned file".getBytes());
+            RebuildPlan stale = reopened.planRebuild(true, new RecompressOptions(false));
+            reopened.deleteFile("plan.txt");
+            Assert.expectThrows(IllegalStateException.class, () -> reopened.close(stale));
+        }
+
+        // sizes beyond 4 GB are projected without overflow, the content is not read by planning
+        long hugeSize = 5L << 30;
+        try (JMpqEditor inMemory = new JMpqEditor(Files.readAllBytes(mpq.toPath()), MPQOpenOption.FORCE_V0)) {
+            inMemory.insertChannel("huge.bin", Channels.newChannel(new ByteArrayInputStream(new byte[0])), hugeSize, false);
+            RebuildPlan hugePlan = inMemory.planRebuild(true, new RecompressOptions(false));
+            Assert.assertTrue(hugePlan.getCompressBytes() >= hugeSize);
+            Assert.assertTrue(hugePlan.getProjectedSize() > hugeSize);
+            inMemory.deleteFile("huge.bin");
+        }
+    }
+
+    @Test
+    public void testStagingSpill() throws IOException {
+        File mpq = Arrays.stream(getMpqs()).filter(pq -> pq.getName().contains("pkwareTest")).findFirst().get();
+        Random random = new Random(7);
+        byte[][] contents = new byte[5][];
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.FORCE_V0)) {
+            mpqEditor.setStagingMemoryLimit(10000);
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = new byte[4000 + i];
+                random.nextBytes(contents[i]);
+                mpqEditor.insertByteArray("Staged\\File" + i + ".bin", contents[i]);
+                Assert.assertTrue(mpqEditor.getStagedMemorySize() <= 10000);
+            }
+            // names are compared like the archive compares them
+            contents[2] = "replaced".getBytes();
+            mpqEditor.insertByteArray("STAGED\\file2.BIN", contents[2], true);
+            Assert.assertTrue(mpqEditor.getStagedMemorySize() <= 10000);
+            mpqEditor.deleteFile("STAGED\\FILE3.BIN");
+            mpqEditor.checkpoint();
+        }
+        try (JMpqEditor mpqEditor = new JMpqEditor(mpq, MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+            for (int i = 0; i < contents.length; i++) {
+                if (i == 3) {
+                    Assert.assertFalse(mpqEditor.hasFile("Staged\\File3.bin"));
+                } else {
+                    Assert.assertEquals(mpqEditor.extractFileAsBytes("Staged\\File" + i + ".bin"), contents[i]);
+                }
+            }
+        }
+    }
+
+    private static long getFilePos(JMpqEditor mpqEditor, String name) throws IOException {
+        return mpqEditor.getBlockTable().getBlockAtPos(mpqEditor.getHashTable().getBlockIndexOfFile(name)).getFilePos();
+    }
+
+    private static int getStoredSize(JMpqEditor mpqEditor, String name) throws IOException {
+        return mpqEditor.getBlockTable().getBlockAtPos(mpqEditor.getHashTable().getBlockIndexOfFile(name)).getCompressedSize();
+    }
+
     @Test
     public void testRecompressBuild() throws IOException {
         File[] mpqs = getMpqs();
@@ -502,6 +1582,32 @@ public class MpqTests {
         mpqEditor.close();
     }
     
+    @Test
+    public void testWriteFileAndBlock() throws IOException {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        int sectorSize = 4096;
+        ByteBuffer stored = ByteBuffer.allocate(2 * data.length).order(ByteOrder.LITTLE_ENDIAN);
+        BlockTable.Block block = new BlockTable.Block(0, 0, 0, 0);
+        MpqFile.writeFileAndBlock(data, block, stored, sectorSize, new RecompressOptions(false));
+        Assert.assertTrue(block.hasFlag(MpqFile.COMPRESSED));
+        Assert.assertEquals(block.getNormalSize(), data.length);
+
+        // copy the stored file as it is
+        stored.position(0);
+        MpqFile file = new MpqFile(stored, block, sectorSize, "test.bin");
+        ByteBuffer copy = ByteBuffer.allocate(block.getCompressedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        BlockTable.Block copyBlock = new BlockTable.Block(0, 0, 0, 0);
+        file.writeFileAndBlock(copyBlock, copy);
+        Assert.assertEquals(copyBlock.getCompressedSize(), block.getCompressedSize());
+        Assert.assertEquals(copyBlock.getFlags(), block.getFlags());
+
+        copy.position(0);
+        Assert.assertEquals(new MpqFile(copy, copyBlock, sectorSize, "test.bin").extractToBytes(), data);
+    }
+
     @Test()
     public void testForGetMpqFileByBlock() throws IOException {
         File[] mpqs = getMpqs();